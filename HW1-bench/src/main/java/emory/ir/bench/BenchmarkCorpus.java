@@ -0,0 +1,157 @@
+package emory.ir.bench;
+
+import emory.ir.index.DocField;
+import emory.ir.index.IndexFiles;
+import emory.ir.search.Util;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic TREC-format corpus, queries and index in a temp directory.
+ * Term frequencies follow a Zipf distribution so postings and term vectors have realistic shapes.
+ */
+public class BenchmarkCorpus implements Closeable {
+
+    public static final int NUM_FILES = 20;
+    public static final int DOCS_PER_FILE = 250;
+    public static final int NUM_QUERIES = 20;
+    private static final int VOCAB_SIZE = 50000;
+
+    public final Path root;
+    public final Path docDir;
+    public final Path indexDir;
+    public final List<String> queryTexts = new ArrayList<>();
+
+    private final Random random = new Random(42);
+    private final double[] cumulativeProbs = new double[VOCAB_SIZE];
+
+    private BenchmarkCorpus() throws IOException {
+        root = Files.createTempDirectory("hw1-bench");
+        docDir = Files.createDirectories(root.resolve("docs"));
+        indexDir = root.resolve("index");
+
+        double sum = 0;
+        for(int i = 0; i < VOCAB_SIZE; ++i)
+            cumulativeProbs[i] = sum += 1.0 / (i + 1);
+        for(int i = 0; i < VOCAB_SIZE; ++i)
+            cumulativeProbs[i] /= sum;
+    }
+
+    /**
+     * Write the documents and queries, and build the index if requested.
+     */
+    public static BenchmarkCorpus create(boolean buildIndex) throws IOException {
+        return create(buildIndex ? Codec.getDefault() : null);
+    }
+
+    /**
+     * Write the documents and queries, and build the index with the codec unless it is null.
+     */
+    public static BenchmarkCorpus create(Codec codec) throws IOException {
+        BenchmarkCorpus corpus = new BenchmarkCorpus();
+        corpus.writeDocs();
+        corpus.writeQueries();
+        if(codec != null)
+            corpus.buildIndex(codec);
+        return corpus;
+    }
+
+    private String nextTerm(int maxRank) {
+        int rank = Arrays.binarySearch(cumulativeProbs, random.nextDouble() * cumulativeProbs[maxRank - 1]);
+        return "w" + (rank < 0 ? -rank - 1 : rank);
+    }
+
+    private void writeDocs() throws IOException {
+        String[] prefixes = {"fb", "ft", "la"};
+        int docNo = 0;
+        for(int f = 0; f < NUM_FILES; ++f) {
+            Path file = docDir.resolve(String.format("%s%03d", prefixes[f % prefixes.length], f));
+            try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for(int d = 0; d < DOCS_PER_FILE; ++d) {
+                    writer.write(String.format("<DOC>\n<DOCNO> BENCH-%06d </DOCNO>\n<HEADER>\n<F P=100> header </F>\n</HEADER>\n<TEXT>\n", ++docNo));
+                    int numLines = 5 + random.nextInt(40);
+                    for(int l = 0; l < numLines; ++l) {
+                        int numTerms = 5 + random.nextInt(10);
+                        for(int t = 0; t < numTerms; ++t)
+                            writer.write((t == 0 ? "" : " ") + nextTerm(VOCAB_SIZE));
+                        writer.write('\n');
+                    }
+                    writer.write("</TEXT>\n</DOC>\n");
+                }
+            }
+        }
+    }
+
+    private void writeQueries() {
+        for(int q = 0; q < NUM_QUERIES; ++q) {
+            String title = Stream.generate(() -> nextTerm(500)).limit(3).collect(Collectors.joining(" "));
+            String description = Stream.generate(() -> nextTerm(5000)).limit(10).collect(Collectors.joining(" "));
+            queryTexts.add(title + " " + description);
+        }
+    }
+
+    private void buildIndex(Codec codec) throws IOException {
+        IndexFiles.setVerbose(false);
+        IndexFiles.setForwardIndex(true);  // For feedback from either term vectors or the forward index
+        IndexWriterConfig iwc = new IndexWriterConfig(newAnalyzer());
+        iwc.setSimilarity(new LMDirichletSimilarity());
+        iwc.setCodec(codec);
+        try(IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), iwc)) {
+            IndexFiles.indexFiles(writer, docDir);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static Analyzer newAnalyzer() {
+        return new StandardAnalyzer(new CharArraySet(Arrays.asList(Util.getStopWords()), true));
+    }
+
+    public List<Path> getDocFiles() throws IOException {
+        try(Stream<Path> files = Files.list(docDir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    public IndexReader openReader() throws IOException {
+        return DirectoryReader.open(FSDirectory.open(indexDir));
+    }
+
+    public Query[] parseQueries() throws Exception {
+        QueryParser parser = new QueryParser(DocField.TEXT, newAnalyzer());
+        Query[] queries = new Query[queryTexts.size()];
+        for(int i = 0; i < queries.length; ++i)
+            queries[i] = parser.parse(QueryParser.escape(queryTexts.get(i)));
+        return queries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try(Stream<Path> paths = Files.walk(root)) {
+            for(Path path: paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package emory.ir.bench;
+
+import emory.ir.index.IndexFiles;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link IndexFiles#indexDocs}: parsing, analysis and adding all corpus documents to an in-memory index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexingBenchmark {
+
+    private BenchmarkCorpus corpus;
+    private List<Path> files;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        IndexFiles.setVerbose(false);
+        corpus = BenchmarkCorpus.create(false);
+        files = corpus.getDocFiles();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.close();
+    }
+
+    /**
+     * One operation indexes the whole corpus, {@link BenchmarkCorpus#NUM_FILES} * {@link BenchmarkCorpus#DOCS_PER_FILE} docs.
+     */
+    @Benchmark
+    public int indexDocs() throws Exception {
+        IndexWriterConfig iwc = new IndexWriterConfig(BenchmarkCorpus.newAnalyzer());
+        iwc.setSimilarity(new LMDirichletSimilarity());
+        try(IndexWriter writer = new IndexWriter(new ByteBuffersDirectory(), iwc)) {
+            for(Path file: files)
+                IndexFiles.indexDocs(writer, file);
+            writer.commit();
+            return writer.getDocStats().numDocs;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package emory.ir.bench;
+
+import emory.ir.LMLaplace;
+import emory.ir.index.DocField;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SmallFloat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-posting cost of {@link LMLaplace} scoring, through the same {@link Similarity.SimScorer} the searcher uses,
+ * against {@link BM25Similarity} on the same postings as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LMLaplaceBenchmark {
+
+    private static final int NUM_POSTINGS = 1024;
+
+    @Param({"0", "100000"})
+    public int vocabSize;
+
+    private Similarity.SimScorer scorer;
+    private Similarity.SimScorer bm25Scorer;
+    private final float[] freqs = new float[NUM_POSTINGS];
+    private final long[] norms = new long[NUM_POSTINGS];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        LMLaplace similarity = new LMLaplace(vocabSize);
+        CollectionStatistics collectionStats = new CollectionStatistics(DocField.TEXT, 100000, 100000, 30000000, 20000000);
+        TermStatistics termStats = new TermStatistics(new BytesRef("w1"), 5000, 20000);
+        scorer = similarity.scorer(1f, collectionStats, termStats);
+        bm25Scorer = new BM25Similarity().scorer(1f, collectionStats, termStats);
+
+        Random random = new Random(42);
+        for(int i = 0; i < NUM_POSTINGS; ++i) {
+            freqs[i] = 1 + random.nextInt(10);
+            norms[i] = SmallFloat.intToByte4(50 + random.nextInt(1000));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_POSTINGS)
+    public float score() {
+        float sum = 0;
+        for(int i = 0; i < NUM_POSTINGS; ++i)
+            sum += scorer.score(freqs[i], norms[i]);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_POSTINGS)
+    public float bm25() {
+        float sum = 0;
+        for(int i = 0; i < NUM_POSTINGS; ++i)
+            sum += bm25Scorer.score(freqs[i], norms[i]);
+        return sum;
+    }
+}
@@ -0,0 +1,58 @@
+package emory.ir.bench;
+
+import emory.ir.search.DocNoResolver;
+import emory.ir.search.SearchFiles;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting TREC run lines for the top 1000 hits with {@link SearchFiles#printTopDocs}, including docNo resolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PrintTopDocsBenchmark {
+
+    private BenchmarkCorpus corpus;
+    private IndexReader reader;
+    private DocNoResolver docNoResolver;
+    private TopDocs[] topDocs;
+    private final StringBuilder sb = new StringBuilder();
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = BenchmarkCorpus.create(true);
+        reader = corpus.openReader();
+        docNoResolver = new DocNoResolver(reader);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new BM25Similarity());
+        Query[] queries = corpus.parseQueries();
+        topDocs = new TopDocs[queries.length];
+        for(int i = 0; i < queries.length; ++i)
+            topDocs[i] = SearchFiles.doSearch(searcher, queries[i], 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        reader.close();
+        corpus.close();
+    }
+
+    @Benchmark
+    public int printTopDocs() throws Exception {
+        int i = next++ % topDocs.length;
+        sb.setLength(0);
+        SearchFiles.printTopDocs(sb, docNoResolver, topDocs[i], 301 + i, "bench");
+        return sb.length();
+    }
+}
@@ -0,0 +1,84 @@
+package emory.ir.bench;
+
+import emory.ir.search.FeedbackSource;
+import emory.ir.search.LMDirichletProbability;
+import emory.ir.search.SearchFiles;
+import emory.ir.search.TermVectorCache;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RM1/RM3 re-ranking of the LMDirichlet top 1000 with {@link SearchFiles#reRank}; each operation re-ranks the next query.
+ * With tvCacheMB = 0 every term vector is decoded again, otherwise decoded vectors are reused across queries.
+ * Feedback comes from term vectors, the forward index in doc values, or the postings.
+ * With feedbackThreads > 1 the feedback model of each query is built on that many threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReRankBenchmark {
+
+    @Param({"RM1", "RM3"})
+    public String algorithm;
+
+    @Param({"10", "35"})
+    public int k;
+
+    @Param({"30", "70"})
+    public int n;
+
+    @Param({"0", "256"})
+    public long tvCacheMB;
+
+    @Param({"TERM_VECTORS", "FORWARD_INDEX", "POSTINGS"})
+    public FeedbackSource.Type feedback;
+
+    @Param({"1", "4"})
+    public int feedbackThreads;
+
+    private BenchmarkCorpus corpus;
+    private IndexReader reader;
+    private Query[] queries;
+    private TopDocs[] topDocs;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SearchFiles.setVerbose(false);
+        TermVectorCache.setDefaults(tvCacheMB * 1024 * 1024, 1);
+        TermVectorCache.setDefaultSourceType(feedback);
+        LMDirichletProbability.setParallelism(feedbackThreads);
+        corpus = BenchmarkCorpus.create(true);
+        reader = corpus.openReader();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new LMDirichletSimilarity(2000));
+        queries = corpus.parseQueries();
+        topDocs = new TopDocs[queries.length];
+        for(int i = 0; i < queries.length; ++i)
+            topDocs[i] = SearchFiles.doSearch(searcher, queries[i], 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        LMDirichletProbability.setParallelism(1);
+        reader.close();
+        corpus.close();
+    }
+
+    @Benchmark
+    public ScoreDoc[] reRank() throws Exception {
+        int i = next++ % queries.length;
+        double lambda = algorithm.equals("RM3") ? 0.75 : -1;
+        return SearchFiles.reRank(reader, queries[i], topDocs[i], k, n, lambda);
+    }
+}
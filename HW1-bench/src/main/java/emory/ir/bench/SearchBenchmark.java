@@ -0,0 +1,54 @@
+package emory.ir.bench;
+
+import emory.ir.search.SearchFiles;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First-stage retrieval of the top 1000 docs with {@link SearchFiles#doSearch}; each operation searches the next query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SearchBenchmark {
+
+    @Param({"BM25", "LMDirichlet"})
+    public String similarity;
+
+    private BenchmarkCorpus corpus;
+    private IndexReader reader;
+    private IndexSearcher searcher;
+    private Query[] queries;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = BenchmarkCorpus.create(true);
+        reader = corpus.openReader();
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity.equals("BM25") ? new BM25Similarity() : new LMDirichletSimilarity(2000));
+        queries = corpus.parseQueries();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        reader.close();
+        corpus.close();
+    }
+
+    @Benchmark
+    public TopDocs doSearch() throws Exception {
+        Query query = queries[next++ % queries.length];
+        return SearchFiles.doSearch(searcher, query, 1000);
+    }
+}
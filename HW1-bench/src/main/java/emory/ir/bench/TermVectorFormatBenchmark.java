@@ -0,0 +1,81 @@
+package emory.ir.bench;
+
+import emory.ir.index.DocField;
+import emory.ir.index.IndexFiles;
+import emory.ir.index.PackedVectorsCodec;
+import emory.ir.search.DocTermVector;
+import emory.ir.search.TermVectorFeedback;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the term vectors of feedback docs with Lucene's default format against the {@link PackedVectorsCodec} format;
+ * each operation decodes one doc of the next batch of random docs.
+ * feedback reads them as RM does, into collection ordinals and freqs, in bulk from packed vectors;
+ * termsEnum walks their terms and freqs through the Terms API, which any format supports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TermVectorFormatBenchmark {
+
+    private static final int NUM_DOCS = 100;  // Per batch, as many as RM feedback docs of a few queries
+
+    @Param({"Lucene84", PackedVectorsCodec.NAME})
+    public String codec;
+
+    private BenchmarkCorpus corpus;
+    private IndexReader reader;
+    private TermVectorFeedback feedback;
+    private int[][] batches;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = BenchmarkCorpus.create(Codec.forName(codec));
+        reader = corpus.openReader();
+        feedback = new TermVectorFeedback(reader);
+        System.out.printf("%n%s index: %d KB%n", codec, IndexFiles.sizeOf(FSDirectory.open(corpus.indexDir)) / 1024);
+        Random random = new Random(42);
+        batches = new int[64][NUM_DOCS];
+        for(int[] batch: batches) {
+            for(int i = 0; i < NUM_DOCS; ++i)
+                batch[i] = random.nextInt(reader.maxDoc());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        reader.close();
+        corpus.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCS)
+    public DocTermVector[] feedback() throws Exception {
+        return feedback.getTermVectors(batches[next++ % batches.length]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCS)
+    public long termsEnum() throws Exception {
+        long sum = 0;
+        for(int docId: batches[next++ % batches.length]) {
+            Terms terms = reader.getTermVector(docId, DocField.TEXT);
+            TermsEnum termsEnum = terms.iterator();
+            while(termsEnum.next() != null)
+                sum += termsEnum.totalTermFreq();
+        }
+        return sum;
+    }
+}
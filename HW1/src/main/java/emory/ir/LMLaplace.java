@@ -3,16 +3,38 @@ package emory.ir;
 
 import lombok.Getter;
 import lombok.Setter;
-import org.apache.lucene.search.similarities.BasicStats;
-import org.apache.lucene.search.similarities.LMSimilarity;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.SmallFloat;
 
 
-public class LMLaplace extends LMSimilarity {
+/**
+ * Laplace smoothed query likelihood: (freq + 1) / (docLen + vocabSize + 1), or freq / docLen without smoothing.
+ * Norms are encoded as by Lucene's LM and BM25 similarities, so any index of this project can be searched with it.
+ * As in BM25Similarity, the length part of the score is looked up per norm byte from a table computed once per term,
+ * so scoring a posting is a float multiplication; scores may differ from the division in the last bit.
+ */
+public class LMLaplace extends Similarity {
+
+    private static final float[] LENGTH_TABLE = new float[256];  // Norm byte -> doc length
+    static {
+        for(int i = 0; i < 256; ++i)
+            LENGTH_TABLE[i] = SmallFloat.byte4ToInt((byte)i);
+        LENGTH_TABLE[0] = 1;  // As in SimilarityBase, for docs without terms
+    }
 
     @Getter
     @Setter
     private int vocabSize = 0;
 
+    @Getter
+    @Setter
+    private boolean discountOverlaps = true;
+
     public LMLaplace() {
     }
 
@@ -20,19 +42,64 @@ public class LMLaplace extends LMSimilarity {
         this.vocabSize = vocabSize;
     }
 
-    @Override
     public String getName() {
         return this.getClass().getSimpleName();
     }
 
     @Override
-    protected double score(BasicStats stats, double freq, double docLen) {
-        if(vocabSize == 0) {
-            // No smoothing
-            return freq / docLen;
-        } else {
-            // With smoothing
-            return (freq + 1) / (docLen + vocabSize + 1);
+    public long computeNorm(FieldInvertState state) {
+        int numTerms;
+        if(state.getIndexOptions() == IndexOptions.DOCS && state.getIndexCreatedVersionMajor() >= 8)
+            numTerms = state.getUniqueTermCount();
+        else if(discountOverlaps)
+            numTerms = state.getLength() - state.getNumOverlap();
+        else
+            numTerms = state.getLength();
+        return SmallFloat.intToByte4(numTerms);
+    }
+
+    @Override
+    public SimScorer scorer(float boost, CollectionStatistics collectionStats, TermStatistics... termStats) {
+        // The score does not depend on collection or term stats; only the norm and freq vary per posting
+        float smoothing = vocabSize == 0 ? 0 : 1;
+        float[] cache = new float[256];
+        for(int i = 0; i < cache.length; ++i)
+            cache[i] = (float)(boost / (LENGTH_TABLE[i] + smoothing * (vocabSize + 1.0)));
+        return new LaplaceScorer(boost, smoothing, cache);
+    }
+
+    private class LaplaceScorer extends SimScorer {
+        private final float boost;
+        private final float smoothing;  // Added to the freq
+        private final float[] cache;  // Norm byte -> boost / smoothed doc length
+
+        LaplaceScorer(float boost, float smoothing, float[] cache) {
+            this.boost = boost;
+            this.smoothing = smoothing;
+            this.cache = cache;
         }
+
+        @Override
+        public float score(float freq, long norm) {
+            return (freq + smoothing) * cache[(int)norm & 0xFF];
+        }
+
+        @Override
+        public Explanation explain(Explanation freq, long norm) {
+            float docLen = LENGTH_TABLE[(int)norm & 0xFF];
+            float score = score(freq.getValue().floatValue(), norm);
+            if(smoothing == 0)
+                return Explanation.match(score, "score(" + getName() + ", freq=" + freq.getValue() + "), computed as boost * freq / docLen from:",
+                        Explanation.match(boost, "boost"), freq, Explanation.match(docLen, "docLen"));
+            return Explanation.match(score, "score(" + getName() + ", freq=" + freq.getValue()
+                            + "), computed as boost * (freq + 1) / (docLen + vocabSize + 1) from:",
+                    Explanation.match(boost, "boost"), freq, Explanation.match(docLen, "docLen"),
+                    Explanation.match(vocabSize, "vocabSize"));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(vocabSize=" + vocabSize + ")";
     }
 }
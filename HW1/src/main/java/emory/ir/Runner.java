@@ -2,12 +2,18 @@ package emory.ir;
 
 import emory.ir.index.IndexFiles;
 import emory.ir.search.SearchFiles;
+import emory.ir.search.SearchServer;
+import emory.ir.search.Sweep;
 
 public class Runner {
 
     public static void main(String[] args) throws Exception {
         if(args.length > 0 && args[0].equalsIgnoreCase("indexing"))
             IndexFiles.run(args);
+        else if(args.length > 0 && args[0].equalsIgnoreCase("serve"))
+            SearchServer.run(args);
+        else if(args.length > 0 && args[0].equalsIgnoreCase("sweep"))
+            Sweep.run(args);
         else
             SearchFiles.run(args);
     }
@@ -0,0 +1,84 @@
+package emory.ir.index;
+
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * How the search side opens an index directory: the platform default, memory mapped or NIO.
+ * Memory mapped files can be preloaded into the page cache when they are opened, all of them ("all")
+ * or those with the given extensions, e.g. tim, doc, nvd, dvd, tvd; small segments are compound, "cfs" files.
+ */
+public enum DirectoryType {
+    AUTO,
+    MMAP,
+    NIO;
+
+    public static final String PRELOAD_ALL = "all";
+
+    /**
+     * @param preloadExtensions : extensions of the files to preload; empty for none
+     */
+    public Directory open(Path path, Set<String> preloadExtensions) throws IOException {
+        Directory dir;
+        switch(this) {
+            case MMAP:
+                dir = new MMapDirectory(path);
+                break;
+            case NIO:
+                dir = new NIOFSDirectory(path);
+                break;
+            default:
+                dir = FSDirectory.open(path);
+        }
+        if(preloadExtensions.isEmpty())
+            return dir;
+        if(!(dir instanceof MMapDirectory)) {
+            dir.close();
+            throw new IllegalArgumentException("Preloading needs memory mapped files, not " + dir.getClass().getSimpleName());
+        }
+        if(preloadExtensions.contains(PRELOAD_ALL)) {
+            ((MMapDirectory)dir).setPreload(true);
+            return dir;
+        }
+        boolean success = false;
+        try {
+            MMapDirectory preloaded = new MMapDirectory(path);
+            preloaded.setPreload(true);
+            success = true;
+            return new PreloadDirectory(dir, preloaded, preloadExtensions);
+        } finally {
+            if(!success)
+                IOUtils.closeWhileHandlingException(dir);
+        }
+    }
+
+    /**
+     * Opens the files of the given extensions from a preloading directory over the same path, all others as usual.
+     */
+    private static class PreloadDirectory extends FilterDirectory {
+        private final Directory preloaded;
+        private final Set<String> extensions;
+
+        PreloadDirectory(Directory in, Directory preloaded, Set<String> extensions) {
+            super(in);
+            this.preloaded = preloaded;
+            this.extensions = extensions;
+        }
+
+        @Override
+        public IndexInput openInput(String name, IOContext context) throws IOException {
+            if(extensions.contains(FileSwitchDirectory.getExtension(name)))
+                return preloaded.openInput(name, context);
+            return in.openInput(name, context);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOUtils.close(in, preloaded);
+        }
+    }
+}
@@ -4,5 +4,8 @@ public class DocField {
 
     public static String DOC_NO = "DocId";
     public static String TEXT = "Text";
+    public static String TEXT_TERMS = "TextTerms";  // Forward index of TEXT: terms and freqs per document
+    public static String TEXT_SUMMARY = "TextSummary";  // Top terms of TEXT per document, see DocSummary
+    public static String FILE = "File";  // Source file of the document, relative to the doc dir
 
 }
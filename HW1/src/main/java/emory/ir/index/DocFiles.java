@@ -0,0 +1,136 @@
+package emory.ir.index;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Document files as the indexer reads them: plain, or compressed with Unix compress (.Z), gzip (.gz) or zip (.zip).
+ * Compressed files are streamed, never expanded to disk, and decompressed on a read-ahead thread per open file,
+ * so decompression overlaps with parsing and analysis on the indexing thread.
+ */
+public class DocFiles {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int NUM_BUFFERS = 4;  // Decompressed buffers read ahead per file
+
+    public enum Compression {
+        NONE(""),
+        COMPRESS(".z"),
+        GZIP(".gz"),
+        ZIP(".zip");
+
+        private final String suffix;
+
+        Compression(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    private DocFiles() {
+    }
+
+    /**
+     * @return compression of the file, by its suffix in any case
+     */
+    public static Compression compressionOf(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for(Compression compression: Compression.values()) {
+            if(compression != Compression.NONE && name.endsWith(compression.suffix))
+                return compression;
+        }
+        return Compression.NONE;
+    }
+
+    public static boolean isCompressed(Path file) {
+        return compressionOf(file) != Compression.NONE;
+    }
+
+    /**
+     * @return name of the file without its compression suffix
+     */
+    public static String stripSuffix(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - compressionOf(file).suffix.length());
+    }
+
+    /**
+     * Open the file for reading its documents, decompressed; a zip file reads as its entries one after the other.
+     */
+    public static InputStream open(Path file) throws IOException {
+        Compression compression = compressionOf(file);
+        if(compression == Compression.NONE)
+            return Files.newInputStream(file);
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+        try {
+            switch(compression) {
+                case COMPRESS:
+                    in = new LzwInputStream(in);
+                    break;
+                case GZIP:
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                    break;
+                default:
+                    in = new ZipEntriesInputStream(new ZipInputStream(in));
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        return new ReadAheadInputStream(in, BUFFER_SIZE, NUM_BUFFERS);
+    }
+
+    /**
+     * Concatenation of the file entries of a zip stream.
+     */
+    private static class ZipEntriesInputStream extends InputStream {
+        private final ZipInputStream in;
+        private boolean inEntry = false;
+
+        ZipEntriesInputStream(ZipInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false after the last entry
+         */
+        private boolean nextEntry() throws IOException {
+            ZipEntry entry;
+            while((entry = in.getNextEntry()) != null) {
+                if(!entry.isDirectory())
+                    return inEntry = true;
+            }
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            while(inEntry || nextEntry()) {
+                int n = in.read(b, off, len);
+                if(n >= 0)
+                    return n;
+                inEntry = false;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
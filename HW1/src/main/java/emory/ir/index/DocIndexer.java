@@ -0,0 +1,194 @@
+package emory.ir.index;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+/**
+ * Parses TREC files and adds their documents to the writer, reusing the parser buffers, Document and Field instances.
+ * With a writer per shard, each document goes to the shard of its DOCNO (see {@link Shards}).
+ * Not thread-safe; use one instance per indexing thread.
+ */
+public class DocIndexer {
+
+    private final IndexWriter[] writers;
+    private final boolean verbose;
+    private final TrecDocParser parser = new TrecDocParser();
+    private final Document doc = new Document();
+    private final Field docIdField;
+    private final Field docIdValuesField = new SortedDocValuesField(DocField.DOC_NO, new BytesRef());  // For column-wise docNo lookup
+    private final Field fileField = new StringField(DocField.FILE, "", Field.Store.NO);
+    private final Field textField;
+    private final ForwardIndex.Encoder forwardIndexEncoder;
+    private final Field forwardIndexField;
+    private final Field summaryField = new BinaryDocValuesField(DocField.TEXT_SUMMARY, new BytesRef());  // Written later
+    private long numBytesRead = 0;  // Decompressed
+
+    public DocIndexer(IndexWriter writer, boolean verbose) {
+        this(writer, verbose, IndexProfile.FULL, false);
+    }
+
+    /**
+     * @param profile : what to index for TEXT and DOC_NO
+     * @param forwardIndex : keep a {@link ForwardIndex} of TEXT in doc values; TEXT is analyzed twice
+     */
+    public DocIndexer(IndexWriter writer, boolean verbose, IndexProfile profile, boolean forwardIndex) {
+        this(new IndexWriter[]{writer}, verbose, profile, forwardIndex);
+    }
+
+    /**
+     * @param writers : writer of each shard, sharing analyzer and open mode
+     */
+    public DocIndexer(IndexWriter[] writers, boolean verbose, IndexProfile profile, boolean forwardIndex) {
+        this(writers, verbose, profile, forwardIndex, false);
+    }
+
+    /**
+     * @param summaries : add an empty {@link DocSummary}, written once the index is committed
+     */
+    public DocIndexer(IndexWriter[] writers, boolean verbose, IndexProfile profile, boolean forwardIndex, boolean summaries) {
+        this.writers = writers;
+        this.verbose = verbose;
+        this.docIdField = new StringField(DocField.DOC_NO, "", profile.storesDocNo() ? Field.Store.YES : Field.Store.NO);
+        this.textField = new Field(DocField.TEXT, parser.getTextReader(), profile.getTextType());
+        doc.add(docIdField);
+        doc.add(docIdValuesField);
+        doc.add(fileField);
+        doc.add(textField);
+        if(forwardIndex) {
+            forwardIndexEncoder = new ForwardIndex.Encoder(writers[0].getAnalyzer());
+            forwardIndexField = new BinaryDocValuesField(DocField.TEXT_TERMS, new BytesRef());
+            doc.add(forwardIndexField);
+        } else {
+            forwardIndexEncoder = null;
+            forwardIndexField = null;
+        }
+        if(summaries)
+            doc.add(summaryField);
+    }
+
+    public int indexFile(Path file) throws IOException {
+        return indexFile(file, file.toString());
+    }
+
+    /**
+     * Unless the writer creates a new index, the documents previously indexed from the file are deleted
+     * and each document replaces any other with its DOCNO.
+     * @param name : name of the file in the {@link Manifest}
+     * @return number of documents indexed
+     */
+    public int indexFile(Path file, String name) throws IOException {
+        return parseFile(file, name, (docNo, docParser) -> addDocument(name, docNo, docParser::getTextReader));
+    }
+
+    /**
+     * Receives the documents of a file as they are parsed.
+     */
+    public interface DocConsumer {
+        /**
+         * @param parser : positioned on the document; its text is only valid during the call
+         */
+        void accept(String docNo, TrecDocParser parser) throws IOException;
+    }
+
+    /**
+     * Parse the file and pass each document with a DOCNO and TEXT to the consumer. Unless the writer creates a new
+     * index, the documents previously indexed from the file are deleted first.
+     * @param name : name of the file in the {@link Manifest}
+     * @return number of documents passed
+     */
+    public int parseFile(Path file, String name, DocConsumer consumer) throws IOException {
+        if(!isCreate()) {
+            for(IndexWriter writer: writers)
+                writer.deleteDocuments(new Term(DocField.FILE, name));  // Only applies to documents added before
+        }
+        int numDocs = 0;
+        try(Reader reader = new InputStreamReader(new CountingInputStream(DocFiles.open(file)), StandardCharsets.UTF_8)) {
+            parser.reset(reader);
+            while(parser.nextDoc()) {
+                if(!parser.hasDocNo() || !parser.hasText()) {
+                    System.out.println("Skip: no DOCNO or TEXT in document");
+                    continue;
+                }
+                consumer.accept(parser.getDocNo(), parser);
+                ++numDocs;
+            }
+        }
+        return numDocs;
+    }
+
+    /**
+     * Add a parsed document to the writer of its shard; unless the writer creates a new index, it replaces
+     * any other with its DOCNO.
+     * @param name : name of its file in the {@link Manifest}
+     * @param text : opens its TEXT from the start; called once more with a forward index
+     */
+    public void addDocument(String name, String docNo, Supplier<Reader> text) throws IOException {
+        fileField.setStringValue(name);
+        docIdField.setStringValue(docNo);
+        docIdValuesField.setBytesValue(new BytesRef(docNo));
+        if(forwardIndexField != null)
+            forwardIndexField.setBytesValue(forwardIndexEncoder.encode(text.get()));  // Copied by the writer
+        textField.setReaderValue(text.get());
+        IndexWriter writer = writers.length == 1 ? writers[0] : writers[Shards.of(docNo, writers.length)];
+
+        // Write document
+        if (isCreate()) {
+            if(verbose)
+                System.out.println("adding " + docNo);
+            writer.addDocument(doc);
+        } else {
+            if(verbose)
+                System.out.println("updating " + docNo);
+            writer.updateDocument(new Term(DocField.DOC_NO, docNo), doc);
+        }
+    }
+
+    private boolean isCreate() {
+        return writers[0].getConfig().getOpenMode() == OpenMode.CREATE;
+    }
+
+    /**
+     * @return bytes of all files indexed so far, after decompression
+     */
+    public long getNumBytesRead() {
+        return numBytesRead;
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0)
+                ++numBytesRead;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0)
+                numBytesRead += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package emory.ir.index;
+
+import emory.ir.search.CollectionModel;
+import emory.ir.search.DocTermVector;
+import emory.ir.search.FeedbackSource;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Summary of each document's TEXT in the {@link DocField#TEXT_SUMMARY} binary doc values, for approximate RM feedback:
+ * its top terms by tf * icf, freq * log(collection length / collection freq), and its full length.
+ * The icf is only known for the whole collection, so summaries are written over the committed index as updates of
+ * an empty value added with each document. Terms are stored as bytes, not {@link CollectionModel} ordinals, which
+ * shift whenever the vocabulary changes: a summary stays valid across updates, and an update only summarizes
+ * the documents it added.
+ *
+ * Format: vInt docLength | vInt numTerms | per term by descending weight: vInt length, term bytes, vInt freq
+ */
+public class DocSummary {
+
+    private static final int DOCS_PER_READ = 4096;
+
+    private DocSummary() {
+    }
+
+    /**
+     * Summarize the live documents of the reader that have no summary yet, updating them through the writer of
+     * their shard; term freqs are read from the best feedback source of the index.
+     * @return number of documents summarized
+     */
+    public static int write(IndexWriter[] writers, IndexReader reader, int numTerms) throws IOException {
+        CollectionModel collectionModel = CollectionModel.get(reader);
+        FeedbackSource source = FeedbackSource.create(reader, FeedbackSource.detect(reader));
+        int numDocs = 0;
+        int[] docIds = new int[DOCS_PER_READ];
+        for(LeafReaderContext leaf: reader.leaves()) {
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            SortedDocValues docNos = DocValues.getSorted(leaf.reader(), DocField.DOC_NO);
+            BinaryDocValues summaries = DocValues.getBinary(leaf.reader(), DocField.TEXT_SUMMARY);
+            int maxDoc = leaf.reader().maxDoc();
+            for(int from = 0; from < maxDoc; ) {
+                int count = 0;
+                for(; from < maxDoc && count < docIds.length; ++from) {
+                    if((liveDocs == null || liveDocs.get(from))
+                            && (!summaries.advanceExact(from) || summaries.binaryValue().length == 0))
+                        docIds[count++] = leaf.docBase + from;
+                }
+                if(count == 0)
+                    continue;
+                DocTermVector[] vectors = source.getTermVectors(Arrays.copyOf(docIds, count));
+                for(int i = 0; i < count; ++i) {
+                    if(!docNos.advanceExact(docIds[i] - leaf.docBase))
+                        continue;
+                    String docNo = docNos.binaryValue().utf8ToString();
+                    IndexWriter writer = writers.length == 1 ? writers[0] : writers[Shards.of(docNo, writers.length)];
+                    writer.updateBinaryDocValue(new Term(DocField.DOC_NO, docNo), DocField.TEXT_SUMMARY,
+                            encode(vectors[i], collectionModel, numTerms));
+                    ++numDocs;
+                }
+            }
+        }
+        return numDocs;
+    }
+
+    /**
+     * @return summary of the doc, in a new array
+     */
+    static BytesRef encode(DocTermVector vector, CollectionModel collectionModel, int numTerms) throws IOException {
+        Integer[] order = new Integer[vector.size()];
+        double[] weights = new double[vector.size()];
+        for(int i = 0; i < order.length; ++i) {
+            order[i] = i;
+            weights[i] = vector.freqs[i] * -Math.log(collectionModel.getProb(vector.ords[i]));
+        }
+        // By descending weight; ties by ordinal, which ascends in the vector
+        Arrays.sort(order, (a, b) -> weights[a] != weights[b] ? Double.compare(weights[b], weights[a]) : Integer.compare(a, b));
+        int size = Math.min(numTerms, order.length);
+        BytesRef[] terms = new BytesRef[size];
+        int numBytes = 10;
+        for(int i = 0; i < size; ++i) {
+            terms[i] = collectionModel.getTerm(vector.ords[order[i]], new BytesRef());
+            numBytes += 10 + terms[i].length;
+        }
+        byte[] buffer = new byte[numBytes];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+        out.writeVInt(vector.length);
+        out.writeVInt(size);
+        for(int i = 0; i < size; ++i) {
+            out.writeVInt(terms[i].length);
+            out.writeBytes(terms[i].bytes, terms[i].offset, terms[i].length);
+            out.writeVInt(vector.freqs[order[i]]);
+        }
+        return new BytesRef(buffer, 0, out.getPosition());
+    }
+
+    /**
+     * Reads encoded summaries; reusable across documents.
+     */
+    public static class Decoder {
+        private final ByteArrayDataInput in = new ByteArrayDataInput();
+        private final BytesRef term = new BytesRef();
+        private int docLength, numTerms;
+
+        /**
+         * @return false for a document indexed without a summary
+         */
+        public boolean reset(BytesRef data) {
+            if(data.length == 0)
+                return false;
+            in.reset(data.bytes, data.offset, data.length);
+            docLength = in.readVInt();
+            numTerms = in.readVInt();
+            return true;
+        }
+
+        public int getDocLength() {
+            return docLength;
+        }
+
+        public int size() {
+            return numTerms;
+        }
+
+        /**
+         * Read the first terms, by descending weight, into the arrays as ordinals of the collection model.
+         * @return number of terms read; terms not in the model are left out
+         */
+        public int read(CollectionModel collectionModel, int[] ords, int[] freqs, int count) {
+            int size = 0;
+            for(int i = 0; i < count; ++i) {
+                term.length = in.readVInt();
+                term.bytes = ArrayUtil.grow(term.bytes, term.length);
+                in.readBytes(term.bytes, 0, term.length);
+                int freq = in.readVInt();
+                int ord = collectionModel.getOrd(term);
+                if(ord >= 0) {
+                    ords[size] = ord;
+                    freqs[size++] = freq;
+                }
+            }
+            return size;
+        }
+    }
+}
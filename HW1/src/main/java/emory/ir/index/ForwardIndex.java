@@ -0,0 +1,137 @@
+package emory.ir.index;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Forward index of {@link DocField#TEXT}, kept per document in the {@link DocField#TEXT_TERMS} binary doc values:
+ * the analyzed terms with their freqs, for relevance feedback on indexes without term vectors.
+ *
+ * Format: vInt numTerms | vInt docLength | per term in byte order: vInt prefix shared with the previous term,
+ * vInt suffix length, suffix bytes, vInt freq
+ */
+public class ForwardIndex {
+
+    /**
+     * Analyzes documents and encodes their forward index; buffers are reused across documents.
+     * Not thread-safe.
+     */
+    public static class Encoder {
+        private final Analyzer analyzer;
+        private final BytesRefHash terms = new BytesRefHash();
+        private int[] freqs = new int[64];
+        private byte[] buffer = new byte[1024];
+        private final BytesRef encoded = new BytesRef();
+        private BytesRef term = new BytesRef(), previous = new BytesRef();
+
+        public Encoder(Analyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+
+        /**
+         * @return encoded forward index of the text; valid until the next call
+         */
+        public BytesRef encode(Reader text) throws IOException {
+            terms.clear();
+            terms.reinit();
+            int docLength = 0;
+            try(TokenStream tokens = analyzer.tokenStream(DocField.TEXT, text)) {
+                TermToBytesRefAttribute termAtt = tokens.addAttribute(TermToBytesRefAttribute.class);
+                tokens.reset();
+                while(tokens.incrementToken()) {
+                    int id = terms.add(termAtt.getBytesRef());
+                    if(id >= 0) {
+                        freqs = ArrayUtil.grow(freqs, id + 1);
+                        freqs[id] = 1;
+                    } else {
+                        ++freqs[-id - 1];
+                    }
+                    ++docLength;
+                }
+                tokens.end();
+            }
+
+            int numTerms = terms.size();
+            int[] sortedIds = terms.sort();
+            ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+            out.writeVInt(numTerms);
+            out.writeVInt(docLength);
+            for(int i = 0; i < numTerms; ++i) {
+                terms.get(sortedIds[i], term);
+                int prefix = i == 0 ? 0 : StringHelper.bytesDifference(previous, term);
+                int suffix = term.length - prefix;
+                if(out.getPosition() + 15 + suffix > buffer.length) {
+                    int position = out.getPosition();
+                    buffer = ArrayUtil.grow(buffer, position + 15 + suffix);
+                    out.reset(buffer, position, buffer.length - position);
+                }
+                out.writeVInt(prefix);
+                out.writeVInt(suffix);
+                out.writeBytes(term.bytes, term.offset + prefix, suffix);
+                out.writeVInt(freqs[sortedIds[i]]);
+                BytesRef swap = previous;
+                previous = term;
+                term = swap;
+            }
+            encoded.bytes = buffer;
+            encoded.offset = 0;
+            encoded.length = out.getPosition();
+            return encoded;
+        }
+    }
+
+    /**
+     * Iterates the terms of an encoded forward index in byte order; reusable across documents.
+     */
+    public static class Decoder {
+        private final ByteArrayDataInput in = new ByteArrayDataInput();
+        private final BytesRef term = new BytesRef(16);
+        private int numTerms, docLength, remaining, freq;
+
+        public void reset(BytesRef data) {
+            in.reset(data.bytes, data.offset, data.length);
+            numTerms = in.readVInt();
+            docLength = in.readVInt();
+            remaining = numTerms;
+            term.length = 0;
+        }
+
+        public int size() {
+            return numTerms;
+        }
+
+        public int getDocLength() {
+            return docLength;
+        }
+
+        public boolean next() {
+            if(remaining == 0)
+                return false;
+            --remaining;
+            int prefix = in.readVInt(), suffix = in.readVInt();
+            term.bytes = ArrayUtil.grow(term.bytes, prefix + suffix);
+            in.readBytes(term.bytes, prefix, suffix);
+            term.length = prefix + suffix;
+            freq = in.readVInt();
+            return true;
+        }
+
+        public BytesRef term() {
+            return term;
+        }
+
+        public int freq() {
+            return freq;
+        }
+    }
+}
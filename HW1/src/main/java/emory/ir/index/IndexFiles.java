@@ -1,38 +1,67 @@
 package emory.ir.index;
 
+import emory.ir.search.CollectionModel;
 import emory.ir.search.Util;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.*;
-import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TwoPhaseCommitTool;
 import org.apache.lucene.search.similarities.LMDirichletSimilarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.w3c.dom.Node;
+import org.apache.lucene.util.IOUtils;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.*;
 
 
 public class IndexFiles {
 
+    private static boolean verbose = true;  // Print each added document
+    private static IndexProfile profile = IndexProfile.FULL;  // What to index for TEXT and DOC_NO
+    private static boolean forwardIndex = false;  // Forward index of TEXT in doc values, an alternative for RM feedback
+    private static int summaryTerms = 0;  // Top terms of each doc kept in doc values for approximate RM feedback; 0 for none
+    private static String codec = Codec.getDefault().getName();  // By SPI name, e.g. PackedVectors for bulk-read term vectors
+
+    // Commit user data besides the manifest: how the index was built, kept when appending
+    private static final String PROFILE_KEY = "profile";
+    private static final String FORWARD_INDEX_KEY = "forwardIndex";
+    private static final String SUMMARY_TERMS_KEY = "summaryTerms";
+    private static final String CODEC_KEY = "codec";
+
     private IndexFiles() {
     }
 
+    public static void setVerbose(boolean verbose) {
+        IndexFiles.verbose = verbose;
+    }
+
+    public static void setProfile(IndexProfile profile) {
+        IndexFiles.profile = profile;
+    }
+
+    public static void setForwardIndex(boolean forwardIndex) {
+        IndexFiles.forwardIndex = forwardIndex;
+    }
+
+    public static void setSummaryTerms(int summaryTerms) {
+        IndexFiles.summaryTerms = summaryTerms;
+    }
+
+    public static void setCodec(String codec) {
+        IndexFiles.codec = codec;
+    }
+
     /**
      * Index all text files under a directory.
      */
@@ -40,7 +69,8 @@ public class IndexFiles {
         String usage = "Usage: indexing\n" +
                 "       [Similarity --> BM25 or LM]\n" +
                 "       [Doc Dir --> Absolute Path to data folder]\n" +
-                "       [Index Dir --> Absolute Path to index folder to be stored]";
+                "       [Index Dir --> Absolute Path to index folder to be stored]\n" +
+                "       [Options --> --threads N, --profile full|lean|minimal, --forward-index, --summaries T, --codec Lucene84|PackedVectors, --shards N, --incremental]";
 
         if(args.length < 4 || !args[0].equalsIgnoreCase("indexing")
                 || (!args[1].equalsIgnoreCase("BM25") && !args[1].equalsIgnoreCase("LM"))){
@@ -51,7 +81,29 @@ public class IndexFiles {
         String similarity = args[1];
         String docsPath = args[2];
         String indexPath = args[3];
-        boolean create = true;
+        boolean incremental = false;
+        int numThreads = 0;  // Default: 1, or one per shard
+        int numShards = 1;
+        for(int i = 4; i < args.length; ++i) {
+            if(args[i].equals("--threads") && i + 1 < args.length) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--profile") && i + 1 < args.length) {
+                profile = IndexProfile.valueOf(args[++i].toUpperCase());
+            } else if(args[i].equals("--forward-index")) {
+                forwardIndex = true;
+            } else if(args[i].equals("--summaries") && i + 1 < args.length) {
+                summaryTerms = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--codec") && i + 1 < args.length) {
+                codec = Codec.forName(args[++i]).getName();
+            } else if(args[i].equals("--shards") && i + 1 < args.length) {
+                numShards = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--incremental")) {
+                incremental = true;
+            } else {
+                System.out.println(usage);
+                System.exit(0);
+            }
+        }
 
         final Path docDir = Paths.get(docsPath);
         if (!Files.isReadable(docDir)) {
@@ -63,32 +115,125 @@ public class IndexFiles {
         try {
             System.out.println("Indexing to directory '" + indexPath + "'...");
 
-            Directory dir = FSDirectory.open(Paths.get(indexPath));
+            Path indexDir = Paths.get(indexPath);
+            if(incremental) {
+                // Keep the layout of the existing index
+                List<Path> shards = Shards.list(indexDir);
+                if(!shards.isEmpty())
+                    numShards = shards.size();
+                else if(Files.isDirectory(indexDir) && indexExists(indexDir))
+                    numShards = 1;
+            }
+            Directory[] dirs = new Directory[numShards];
+            for(int i = 0; i < numShards; ++i)
+                dirs[i] = FSDirectory.open(numShards == 1 ? indexDir : Shards.getShard(indexDir, i));
+            boolean create = !incremental || !DirectoryReader.indexExists(dirs[0]);
+            if(create)
+                Shards.deleteFrom(indexDir, numShards == 1 ? 0 : numShards);  // Left over from a build with more shards
             Analyzer analyzer = new StandardAnalyzer(new CharArraySet(Arrays.asList(Util.getStopWords()), true));
-            IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-            if(similarity.equalsIgnoreCase("LM"))
-                iwc.setSimilarity(new LMDirichletSimilarity());
-
-            if (create) {
-                // Create a new index in the directory, removing any
-                // previously indexed documents:
-                iwc.setOpenMode(OpenMode.CREATE);
-            } else {
-                // Add new documents to an existing index:
-                iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+
+            // How the index was built is kept when appending; read before the writers, which need the codec
+            Map<String, String> commitData = new HashMap<>();
+            if(!create) {
+                commitData.putAll(SegmentInfos.readLatestCommit(dirs[0]).getUserData());
+                if(commitData.containsKey(PROFILE_KEY)) {
+                    profile = IndexProfile.valueOf(commitData.get(PROFILE_KEY));
+                    forwardIndex = Boolean.parseBoolean(commitData.get(FORWARD_INDEX_KEY));
+                    summaryTerms = Integer.parseInt(commitData.getOrDefault(SUMMARY_TERMS_KEY, "0"));
+                    codec = commitData.getOrDefault(CODEC_KEY, codec);
+                }
             }
 
-            // Optional: for better indexing performance, if you
-            // are indexing many documents, increase the RAM
-            // buffer.  But if you do this, increase the max heap
-            // size to the JVM (eg add -Xmx512m or -Xmx1g):
-            //
-            // iwc.setRAMBufferSizeMB(256.0);
+            // Shards are written concurrently, each by its own writer
+            IndexWriter[] writers = new IndexWriter[numShards];
+            for(int i = 0; i < numShards; ++i) {
+                IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+                if(similarity.equalsIgnoreCase("LM"))
+                    iwc.setSimilarity(new LMDirichletSimilarity());
+                iwc.setCodec(Codec.forName(codec));
+
+                if (create) {
+                    // Create a new index in the directory, removing any
+                    // previously indexed documents:
+                    iwc.setOpenMode(OpenMode.CREATE);
+                } else {
+                    // Update the documents of new, changed and removed files in an existing index:
+                    iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+                }
 
-            IndexWriter writer = new IndexWriter(dir, iwc);
-            indexFiles(writer, docDir);
+                // Optional: for better indexing performance, if you
+                // are indexing many documents, increase the RAM
+                // buffer.  But if you do this, increase the max heap
+                // size to the JVM (eg add -Xmx512m or -Xmx1g):
+                //
+                // iwc.setRAMBufferSizeMB(256.0);
+
+                writers[i] = new IndexWriter(dirs[i], iwc);
+            }
 
-            writer.close();
+            long scanStart = System.currentTimeMillis();
+            Manifest previous = Manifest.read(commitData.entrySet());
+            Manifest manifest = Manifest.scan(docDir, previous);
+            System.out.println("Scanned " + manifest.size() + " files in " + (System.currentTimeMillis() - scanStart) + " ms");
+
+            if(numThreads <= 0)
+                numThreads = numShards;
+            Collection<Path> failed;
+            if(create) {
+                if(numThreads > 1) {
+                    IndexPipeline pipeline = new IndexPipeline(writers, numThreads, () -> new DocIndexer(writers, false, profile, forwardIndex, summaryTerms > 0));
+                    pipeline.indexFiles(docDir);
+                    failed = pipeline.getFailedFiles();
+                } else
+                    failed = indexFiles(writers, docDir);
+            } else {
+                failed = updateFiles(writers, docDir, previous, manifest, numThreads);
+            }
+            // Their documents may be partly indexed, or deleted by the update; the next update retries them
+            if(!failed.isEmpty()) {
+                Path base = Manifest.getBase(docDir);
+                List<String> names = new ArrayList<>();
+                for(Path file: failed)
+                    names.add(Manifest.nameOf(base, file));
+                manifest.markFailed(names);
+                System.out.println(failed.size() + " files failed to index; the next --incremental run retries them");
+            }
+
+            // Every shard carries the manifest; the shards are committed together, or not at all
+            commitData.put(PROFILE_KEY, profile.name());
+            commitData.put(FORWARD_INDEX_KEY, Boolean.toString(forwardIndex));
+            commitData.put(SUMMARY_TERMS_KEY, Integer.toString(summaryTerms));
+            commitData.put(CODEC_KEY, codec);
+            manifest.writeTo(commitData);
+            for(IndexWriter writer: writers)
+                writer.setLiveCommitData(commitData.entrySet());
+            if(numShards > 1)
+                TwoPhaseCommitTool.execute(writers);
+            long numBytes = 0;
+            for(int i = 0; i < numShards; ++i) {
+                writers[i].close();
+                numBytes += sizeOf(dirs[i]);
+            }
+            System.out.printf("Built %s index%s%s: %.1f MB in %d ms\n", profile, forwardIndex ? " with forward index" : "",
+                    numShards > 1 ? " in " + numShards + " shards" : "", numBytes / (1024.0 * 1024), new Date().getTime() - start.getTime());
+
+            // Summaries weigh terms by the collection model, so they are written over the committed index; an update only
+            // summarizes the documents it added
+            if(summaryTerms > 0) {
+                long summaryStart = System.currentTimeMillis();
+                int numDocs = summarize(indexDir, dirs, analyzer);
+                System.out.printf("Summarized %d docs by their top %d terms in %d ms\n", numDocs, summaryTerms,
+                        System.currentTimeMillis() - summaryStart);
+            }
+
+            // Build the collection LM sidecar used by RM re-ranking; a sharded index builds its model on open
+            if(numShards == 1) {
+                long modelStart = System.currentTimeMillis();
+                try(IndexReader reader = DirectoryReader.open(dirs[0])) {
+                    int numTerms = CollectionModel.get(reader).size();
+                    System.out.println("Built collection model of " + numTerms + " terms in " + (System.currentTimeMillis() - modelStart) + " ms");
+                }
+            }
 
             Date end = new Date();
             System.out.println(end.getTime() - start.getTime() + " total milliseconds");
@@ -99,107 +244,133 @@ public class IndexFiles {
         }
     }
 
+    /**
+     * Write the {@link DocSummary} of the documents of the committed index that have none, with a writer per shard.
+     * @return number of documents summarized
+     */
+    private static int summarize(Path indexDir, Directory[] dirs, Analyzer analyzer) throws IOException {
+        IndexWriter[] writers = new IndexWriter[dirs.length];
+        try(IndexReader reader = Shards.open(indexDir)) {
+            for(int i = 0; i < dirs.length; ++i)
+                writers[i] = new IndexWriter(dirs[i], new IndexWriterConfig(analyzer).setOpenMode(OpenMode.APPEND).setCodec(Codec.forName(codec)));
+            int numDocs = DocSummary.write(writers, reader, summaryTerms);
+            if(writers.length > 1)
+                TwoPhaseCommitTool.execute(writers);
+            return numDocs;
+        } finally {
+            IOUtils.close(writers);  // Commits a single index; keeps the commit data
+        }
+    }
+
+    /**
+     * Bring an existing index up to date with the doc dir: index the new and changed files of the manifest
+     * and delete the documents of removed files.
+     * @return files that failed to index
+     */
+    private static Collection<Path> updateFiles(IndexWriter[] writers, Path docDir, Manifest previous, Manifest manifest, int numThreads) throws Exception {
+        Path base = Manifest.getBase(docDir);
+        List<Path> changed = new ArrayList<>();
+        int numNew = 0, numRemoved = 0;
+        for(String name: manifest.names()) {
+            Manifest.Entry old = previous.get(name);
+            if(old == null)
+                ++numNew;
+            else if(old.getHash().equals(manifest.get(name).getHash()))
+                continue;
+            changed.add(base.resolve(name));
+        }
+        for(String name: previous.names()) {
+            if(manifest.get(name) == null) {
+                for(IndexWriter writer: writers)
+                    writer.deleteDocuments(new Term(DocField.FILE, name));
+                ++numRemoved;
+            }
+        }
+        System.out.printf("Updating %s index: %d new, %d changed, %d removed, %d unchanged files\n", profile,
+                numNew, changed.size() - numNew, numRemoved, manifest.size() - changed.size());
+
+        if(numThreads > 1) {
+            IndexPipeline pipeline = new IndexPipeline(writers, numThreads, () -> new DocIndexer(writers, false, profile, forwardIndex, summaryTerms > 0));
+            pipeline.indexFiles(base, changed);
+            return pipeline.getFailedFiles();
+        }
+        DocIndexer indexer = new DocIndexer(writers, verbose, profile, forwardIndex, summaryTerms > 0);
+        List<Path> failed = new ArrayList<>();
+        for(Path file: changed) {
+            try {
+                indexer.indexFile(file, Manifest.nameOf(base, file));
+            } catch (Exception e) {
+                System.out.println("Skip: " + file);
+                failed.add(file);
+            }
+        }
+        return failed;
+    }
+
     public static void indexFiles(final IndexWriter writer, Path path) throws Exception {
+        indexFiles(new IndexWriter[]{writer}, path);
+    }
+
+    /**
+     * @return files that failed to index
+     */
+    private static List<Path> indexFiles(IndexWriter[] writers, Path path) throws Exception {
+        DocIndexer indexer = new DocIndexer(writers, verbose, profile, forwardIndex, summaryTerms > 0);
+        Path base = Manifest.getBase(path);
+        List<Path> failed = new ArrayList<>();
         if (Files.isDirectory(path)) {
             Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                     try {
-                        indexDocs(writer, file);
+                        indexDocs(indexer, base, file);
                     } catch (Exception e) {
                         // e.printStackTrace();
                         System.out.println("Skip");
+                        failed.add(file);
                     }
                     return FileVisitResult.CONTINUE;
                 }
             });
         } else
-            indexDocs(writer, path);
+            indexDocs(indexer, base, path);
+        return failed;
     }
 
     public static void indexDocs(IndexWriter writer, Path file) throws Exception {
-        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        indexDocs(new DocIndexer(new IndexWriter[]{writer}, verbose, profile, forwardIndex, summaryTerms > 0), Manifest.getBase(file), file);
+    }
+
+    private static void indexDocs(DocIndexer indexer, Path base, Path file) throws Exception {
         // Ignore non-document file
-        String filename = file.getFileName().toString();
-        if(filename.endsWith(".z") || filename.contains("read") || (!filename.contains("fb") && !filename.contains("ft") && !filename.contains("la"))) {
+        if(!isDocFile(file)) {
             System.out.println("Ignore file: " + file);
             return;
         }
+        indexer.indexFile(file, Manifest.nameOf(base, file));
+    }
 
-        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
-            // Read each line to identify each document
-            String line = null;
-            while((line = reader.readLine()) != null) {
-                if(line.trim().isEmpty())
-                    continue;
-
-                if(line.trim().equals("<DOC>")) {
-                    // New document
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(line);
-                    while(true) {
-                        line = reader.readLine();
-                        if(line.contains("<F P=") || line.contains("</F>") || line.contains("<FIG") || line.contains("</FIG>"))  // Filter out invalid format
-                            continue;
-                        sb.append(line);
-                        if(line.trim().equals("</DOC>")) {
-                            // Parse the document
-                            String docStr = sb.toString();
-                            InputStream docStream = new ByteArrayInputStream(docStr.getBytes(StandardCharsets.UTF_8));
-                            org.w3c.dom.Document docDom = db.parse(docStream);
-
-                            // Index document
-                            Document doc = indexDoc(docDom);
-                            if(doc == null) {
-                                System.out.println("Skip: no DOCNO or TEXT in document");
-                                break;
-                            }
-
-                            // Write document
-                            if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-                                System.out.println("adding " + doc.get(DocField.DOC_NO));
-                                writer.addDocument(doc);
-                            } else {
-                                System.out.println("updating " + doc.get(DocField.DOC_NO));
-                                writer.updateDocument(new Term("path", file.toString()), doc);
-                            }
-                            break;
-                        }
-                    }
-                } else
-                    throw new RuntimeException("Invalid doc start tag: " + file);
-            }
+    private static boolean indexExists(Path path) throws IOException {
+        try(Directory dir = FSDirectory.open(path)) {
+            return DirectoryReader.indexExists(dir);
         }
     }
 
-    private static Document indexDoc(org.w3c.dom.Document docDom) {
-        Document doc = new Document();
-
-        String docNo = null, text = null;
-
-        Node node = docDom.getElementsByTagName("DOCNO").item(0);
-        if(node != null)
-            docNo = node.getTextContent().trim();
-
-        node = docDom.getElementsByTagName("TEXT").item(0);
-        if(node != null)
-            text = node.getTextContent().trim();
-
-        if(docNo == null || text == null)
-            return null;
-
-        FieldType type = new FieldType();
-        type.setStored(false);
-        type.setTokenized(true);
-        type.setStoreTermVectors(true);
-        type.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
-        Field textField = new Field(DocField.TEXT, text, type);
-
-        Field docIdField = new StringField(DocField.DOC_NO, docNo, Field.Store.YES);
-
-        doc.add(docIdField);
-        doc.add(textField);
+    /**
+     * @return total bytes of the files in the directory
+     */
+    public static long sizeOf(Directory dir) throws IOException {
+        long bytes = 0;
+        for(String file: dir.listAll())
+            bytes += dir.fileLength(file);
+        return bytes;
+    }
 
-        return doc;
+    static boolean isDocFile(Path file) {
+        String filename = DocFiles.stripSuffix(file);
+        if(filename.contains("read") || (!filename.contains("fb") && !filename.contains("ft") && !filename.contains("la")))
+            return false;
+        // A compressed file next to its expanded copy is indexed once, from the copy
+        return !DocFiles.isCompressed(file) || !Files.exists(file.resolveSibling(filename));
     }
 }
@@ -0,0 +1,236 @@
+package emory.ir.index;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Parallel indexing: file discovery -> streaming parsing of files -> analysis and {@link IndexWriter#addDocument}.
+ * Stages are joined by bounded queues, so a slow stage blocks the ones before it and memory stays bounded.
+ * Documents are added on all workers whichever file they come from, so a few large files still use every worker.
+ * One parser thread is used per 4 workers; parsers and workers each have their own {@link DocIndexer}.
+ */
+public class IndexPipeline {
+
+    private static final Path END_OF_FILES = Paths.get("");
+    private static final ParsedDoc END_OF_DOCS = new ParsedDoc(null, null, null, null);
+
+    private static class ParsedDoc {
+        final Path file;
+        final String name;  // Of the file in the manifest
+        final String docNo;
+        final char[] text;
+
+        ParsedDoc(Path file, String name, String docNo, char[] text) {
+            this.file = file;
+            this.name = name;
+            this.docNo = docNo;
+            this.text = text;
+        }
+    }
+
+    private final IndexWriter[] writers;
+    private final int numParsers;
+    private final int numWorkers;
+    private final Supplier<DocIndexer> indexers;
+    private final BlockingQueue<Path> fileQueue;
+    private final BlockingQueue<ParsedDoc> docQueue;
+    private final AtomicInteger numActiveParsers = new AtomicInteger();
+    private Path base;  // Files are named relative to it
+
+    private final AtomicLong numDocs = new AtomicLong();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong numBytesRead = new AtomicLong();  // Decompressed
+    private final Set<Path> failedFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param numWorkers : threads analyzing and adding documents
+     */
+    public IndexPipeline(IndexWriter writer, int numWorkers) {
+        this(writer, numWorkers, () -> new DocIndexer(writer, false));
+    }
+
+    /**
+     * @param indexers : creates the indexer of each worker
+     */
+    public IndexPipeline(IndexWriter writer, int numWorkers, Supplier<DocIndexer> indexers) {
+        this(new IndexWriter[]{writer}, numWorkers, indexers);
+    }
+
+    /**
+     * @param writers : writer of each shard
+     */
+    public IndexPipeline(IndexWriter[] writers, int numWorkers, Supplier<DocIndexer> indexers) {
+        this.writers = writers;
+        this.numWorkers = numWorkers;
+        this.numParsers = Math.max(1, numWorkers / 4);
+        this.indexers = indexers;
+        this.fileQueue = new ArrayBlockingQueue<>(numParsers * 4);
+        this.docQueue = new ArrayBlockingQueue<>(numWorkers * 64);
+    }
+
+    public void indexFiles(Path path) throws Exception {
+        indexFiles(Manifest.getBase(path), () -> discoverFiles(path));
+    }
+
+    /**
+     * Index the given files only.
+     * @param base : directory the files are named relative to
+     */
+    public void indexFiles(Path base, Collection<Path> files) throws Exception {
+        indexFiles(base, () -> queueFiles(files));
+    }
+
+    private void indexFiles(Path base, Callable<Void> discovery) throws Exception {
+        long start = System.currentTimeMillis();
+        this.base = base;
+        numActiveParsers.set(numParsers);
+
+        ExecutorService executor = Executors.newFixedThreadPool(1 + numParsers + numWorkers);
+        ExecutorCompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+        try {
+            stages.submit(discovery);
+            for(int i = 0; i < numParsers; ++i)
+                stages.submit(this::parseFiles);
+            for(int i = 0; i < numWorkers; ++i)
+                stages.submit(this::addDocs);
+
+            // Fail fast: the first failed stage interrupts all others
+            for(int i = 0; i < 1 + numParsers + numWorkers; ++i)
+                stages.take().get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long millis = Math.max(System.currentTimeMillis() - start, 1);
+        double mb = numBytes.get() / (1024.0 * 1024.0);
+        System.out.printf("Indexed %d docs (%.1f MB) in %d ms with %d parsers and %d workers: %.1f docs/sec, %.2f MB/sec\n",
+                numDocs.get(), mb, millis, numParsers, numWorkers, numDocs.get() * 1000.0 / millis, mb * 1000.0 / millis);
+        if(numBytesRead.get() != numBytes.get()) {
+            double readMB = numBytesRead.get() / (1024.0 * 1024.0);
+            System.out.printf("Decompressed to %.1f MB: %.2f MB/sec compressed, %.2f MB/sec uncompressed\n",
+                    readMB, mb * 1000.0 / millis, readMB * 1000.0 / millis);
+        }
+    }
+
+    private Void discoverFiles(Path path) throws Exception {
+        try {
+            if(Files.isDirectory(path)) {
+                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if(!IndexFiles.isDocFile(file)) {
+                            System.out.println("Ignore file: " + file);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        try {
+                            fileQueue.put(file);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return FileVisitResult.TERMINATE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else if(IndexFiles.isDocFile(path)) {
+                fileQueue.put(path);
+            }
+        } finally {
+            for(int i = 0; i < numParsers; ++i)
+                fileQueue.put(END_OF_FILES);
+        }
+        return null;
+    }
+
+    private Void queueFiles(Collection<Path> files) throws InterruptedException {
+        try {
+            for(Path file: files)
+                fileQueue.put(file);
+        } finally {
+            for(int i = 0; i < numParsers; ++i)
+                fileQueue.put(END_OF_FILES);
+        }
+        return null;
+    }
+
+    private Void parseFiles() throws Exception {
+        DocIndexer indexer = indexers.get();
+        try {
+            Path file;
+            while((file = fileQueue.take()) != END_OF_FILES) {
+                long bytesRead = indexer.getNumBytesRead();
+                Path parsedFile = file;
+                String name = Manifest.nameOf(base, file);
+                try {
+                    indexer.parseFile(file, name, (docNo, parser) -> {
+                        try {
+                            docQueue.put(new ParsedDoc(parsedFile, name, docNo, parser.copyText()));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    });
+                    numBytes.addAndGet(Files.size(file));
+                    numBytesRead.addAndGet(indexer.getNumBytesRead() - bytesRead);
+                } catch (Exception e) {
+                    // Skip the file on any failure, e.g. a RuntimeException from malformed input, as the sequential
+                    // indexer does; unless the build is cancelled or a writer is broken
+                    if(Thread.currentThread().isInterrupted() || hasTragicException())
+                        throw e;
+                    System.out.println("Skip: " + file);
+                    failedFiles.add(file);
+                }
+            }
+        } finally {
+            // The last parser tells all workers to stop
+            if(numActiveParsers.decrementAndGet() == 0) {
+                for(int i = 0; i < numWorkers; ++i)
+                    docQueue.put(END_OF_DOCS);
+            }
+        }
+        return null;
+    }
+
+    private Void addDocs() throws Exception {
+        DocIndexer indexer = indexers.get();
+        ParsedDoc doc;
+        while((doc = docQueue.take()) != END_OF_DOCS) {
+            char[] text = doc.text;
+            try {
+                indexer.addDocument(doc.name, doc.docNo, () -> new CharArrayReader(text));
+                numDocs.incrementAndGet();
+            } catch (Exception e) {
+                if(Thread.currentThread().isInterrupted() || hasTragicException())
+                    throw e;
+                System.out.println("Skip: a document of " + doc.file);
+                failedFiles.add(doc.file);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return files skipped because they failed to index; some of their documents may be indexed, or deleted
+     */
+    public Set<Path> getFailedFiles() {
+        return failedFiles;
+    }
+
+    private boolean hasTragicException() {
+        for(IndexWriter writer: writers) {
+            if(writer.getTragicException() != null)
+                return true;
+        }
+        return false;
+    }
+}
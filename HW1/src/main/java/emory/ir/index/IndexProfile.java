@@ -0,0 +1,59 @@
+package emory.ir.index;
+
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+/**
+ * What is indexed for {@link DocField#TEXT} and {@link DocField#DOC_NO}.
+ * None of the ranking models reads positions or offsets; RM1/RM3 feedback reads term vectors when there are any.
+ * DOC_NO is always indexed and kept in sorted doc values; only FULL also stores it.
+ */
+public enum IndexProfile {
+
+    FULL(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS, true, true),  // Everything, as indexed originally
+    LEAN(IndexOptions.DOCS_AND_FREQS, true, false),  // Docs and freqs, term vectors without positions or offsets
+    MINIMAL(IndexOptions.DOCS_AND_FREQS, false, false);  // Docs and freqs only
+
+    private final FieldType textType;
+    private final boolean storeDocNo;
+
+    IndexProfile(IndexOptions indexOptions, boolean termVectors, boolean storeDocNo) {
+        textType = new FieldType();
+        textType.setStored(false);
+        textType.setTokenized(true);
+        textType.setStoreTermVectors(termVectors);
+        textType.setIndexOptions(indexOptions);
+        textType.freeze();
+        this.storeDocNo = storeDocNo;
+    }
+
+    public FieldType getTextType() {
+        return textType;
+    }
+
+    public boolean hasTermVectors() {
+        return textType.storeTermVectors();
+    }
+
+    public boolean storesDocNo() {
+        return storeDocNo;
+    }
+
+    /**
+     * @return the profile whose features all segments of the reader have
+     */
+    public static IndexProfile detect(IndexReader reader) {
+        boolean positions = true, termVectors = true;
+        for(LeafReaderContext leaf: reader.leaves()) {
+            FieldInfo text = leaf.reader().getFieldInfos().fieldInfo(DocField.TEXT);
+            positions &= text != null && text.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+            termVectors &= text != null && text.hasVectors();
+        }
+        if(termVectors)
+            return positions ? FULL : LEAN;
+        return MINIMAL;
+    }
+}
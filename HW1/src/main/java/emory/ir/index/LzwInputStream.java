@@ -0,0 +1,175 @@
+package emory.ir.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the output of Unix compress (.Z): LZW with codes of 9 up to maxBits bits, as in ncompress.
+ * Codes are packed LSB first in groups of nBits bytes; when the code width grows or the table is cleared,
+ * the rest of the current group is padding.
+ * Reads the source one byte at a time, so it should be buffered.
+ */
+class LzwInputStream extends InputStream {
+
+    private static final int MAGIC_1 = 0x1f, MAGIC_2 = 0x9d;
+    private static final int BIT_MASK = 0x1f, BLOCK_MODE = 0x80;
+    private static final int INIT_BITS = 9, MAX_BITS = 16;
+    private static final int CLEAR = 256;
+
+    private final InputStream in;
+    private final int maxBits, maxMaxCode;
+    private final boolean blockMode;
+    private final int[] prefixes;  // code -> code of the string without its last byte
+    private final byte[] suffixes;  // code -> last byte of the string
+    private final byte[] stack;  // Bytes of the last string, filled from the end
+    private int stackPos;
+
+    private int nBits = INIT_BITS, maxCode = (1 << INIT_BITS) - 1;
+    private int freeEnt;  // Next code to define
+    private int oldCode = -1, finChar = 0;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private int groupBits = 0;  // Bits read since the start of the current code width
+
+    LzwInputStream(InputStream in) throws IOException {
+        this.in = in;
+        if(in.read() != MAGIC_1 || in.read() != MAGIC_2)
+            throw new IOException("Not in compress format");
+        int flags = in.read();
+        if(flags < 0)
+            throw new IOException("Truncated compress header");
+        maxBits = flags & BIT_MASK;
+        if(maxBits < INIT_BITS || maxBits > MAX_BITS)
+            throw new IOException("Unsupported compress code width: " + maxBits);
+        blockMode = (flags & BLOCK_MODE) != 0;
+        maxMaxCode = 1 << maxBits;
+        freeEnt = blockMode ? CLEAR + 1 : CLEAR;
+        prefixes = new int[maxMaxCode];
+        suffixes = new byte[maxMaxCode];
+        for(int i = 0; i < 256; ++i)
+            suffixes[i] = (byte)i;
+        stack = new byte[maxMaxCode + 1];
+        stackPos = stack.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(stackPos == stack.length && !decode())
+            return -1;
+        return stack[stackPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        int numRead = 0;
+        while(numRead < len) {
+            if(stackPos == stack.length && !decode())
+                break;
+            int n = Math.min(len - numRead, stack.length - stackPos);
+            System.arraycopy(stack, stackPos, b, off + numRead, n);
+            stackPos += n;
+            numRead += n;
+        }
+        return numRead == 0 ? -1 : numRead;
+    }
+
+    /**
+     * Decode the next code onto the stack.
+     * @return false at the end of the input
+     */
+    private boolean decode() throws IOException {
+        while(true) {
+            if(freeEnt > maxCode) {
+                skipGroup();
+                ++nBits;
+                maxCode = nBits == maxBits ? maxMaxCode : (1 << nBits) - 1;
+            }
+            int code = readCode();
+            if(code < 0)
+                return false;
+            stackPos = stack.length;
+            if(oldCode == -1) {
+                if(code >= 256)
+                    throw new IOException("Corrupt compressed data");
+                oldCode = finChar = code;
+                stack[--stackPos] = (byte)code;
+                return true;
+            }
+            if(code == CLEAR && blockMode) {
+                freeEnt = CLEAR;
+                skipGroup();
+                nBits = INIT_BITS;
+                maxCode = (1 << INIT_BITS) - 1;
+                continue;
+            }
+            int inCode = code;
+            if(code >= freeEnt) {
+                // The string being defined: previous string plus its own first byte
+                if(code > freeEnt)
+                    throw new IOException("Corrupt compressed data");
+                stack[--stackPos] = (byte)finChar;
+                code = oldCode;
+            }
+            while(code >= 256) {
+                stack[--stackPos] = suffixes[code];
+                code = prefixes[code];
+            }
+            finChar = code;
+            stack[--stackPos] = (byte)code;
+            if(freeEnt < maxMaxCode) {
+                prefixes[freeEnt] = oldCode;
+                suffixes[freeEnt] = (byte)finChar;
+                ++freeEnt;
+            }
+            oldCode = inCode;
+            return true;
+        }
+    }
+
+    /**
+     * @return next code, or -1 if fewer than nBits bits are left
+     */
+    private int readCode() throws IOException {
+        while(bitCount < nBits) {
+            int b = in.read();
+            if(b < 0)
+                return -1;
+            bitBuffer |= (long)b << bitCount;
+            bitCount += 8;
+        }
+        int code = (int)(bitBuffer & ((1L << nBits) - 1));
+        bitBuffer >>>= nBits;
+        bitCount -= nBits;
+        groupBits += nBits;
+        return code;
+    }
+
+    /**
+     * Skip the padding up to the end of the current group of nBits bytes.
+     */
+    private void skipGroup() throws IOException {
+        int groupSize = nBits << 3;
+        int skip = (groupSize - groupBits % groupSize) % groupSize;
+        groupBits = 0;
+        while(skip > 0) {
+            if(bitCount == 0) {
+                int b = in.read();
+                if(b < 0)
+                    return;
+                bitBuffer = b;
+                bitCount = 8;
+            }
+            int n = Math.min(skip, bitCount);
+            bitBuffer >>>= n;
+            bitCount -= n;
+            skip -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
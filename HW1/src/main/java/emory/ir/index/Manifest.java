@@ -0,0 +1,148 @@
+package emory.ir.index;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The document files an index was built from: relative path -> size, mtime and content hash.
+ * Kept in the commit user data of the index, so it is committed atomically with the documents.
+ */
+public class Manifest {
+
+    private static final String KEY_PREFIX = "file:";
+
+    @Value
+    public static class Entry {
+        long size;
+        long lastModified;
+        String hash;
+
+        boolean sameStat(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static final String NO_HASH = "-";  // Not hashed yet; differs from any hash
+    private static final Entry FAILED = new Entry(-1, -1, NO_HASH);
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+    /**
+     * Mark the files as not indexed: their entries match no file, so the next update indexes them again even if
+     * they are restored as they were, and deletes their documents if they are removed.
+     */
+    public void markFailed(Collection<String> names) {
+        for(String name: names)
+            entries.put(name, FAILED);
+    }
+
+    public Set<String> names() {
+        return entries.keySet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the manifest in the commit user data; empty if there is none
+     */
+    public static Manifest read(Iterable<Map.Entry<String, String>> commitData) {
+        Manifest manifest = new Manifest();
+        if(commitData == null)
+            return manifest;
+        for(Map.Entry<String, String> data: commitData) {
+            if(!data.getKey().startsWith(KEY_PREFIX))
+                continue;
+            String[] fields = data.getValue().split(" ");
+            manifest.put(data.getKey().substring(KEY_PREFIX.length()),
+                    new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+        }
+        return manifest;
+    }
+
+    /**
+     * Put the manifest into commit user data, replacing any previous manifest.
+     */
+    public void writeTo(Map<String, String> commitData) {
+        commitData.keySet().removeIf(key -> key.startsWith(KEY_PREFIX));
+        for(Map.Entry<String, Entry> entry: entries.entrySet()) {
+            Entry e = entry.getValue();
+            commitData.put(KEY_PREFIX + entry.getKey(), e.size + " " + e.lastModified + " " + e.hash);
+        }
+    }
+
+    /**
+     * Manifest of the document files under root. Only files whose size or mtime differ from their previous entry
+     * are read and hashed, to tell a changed file from a touched one; new files are indexed anyway, so a build
+     * from scratch hashes nothing. A file whose entry has no hash is indexed again the next time its stat changes.
+     */
+    public static Manifest scan(Path root, Manifest previous) throws IOException {
+        Manifest manifest = new Manifest();
+        Path base = getBase(root);
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(!IndexFiles.isDocFile(file))
+                    return FileVisitResult.CONTINUE;
+                String name = nameOf(base, file);
+                Entry old = previous.get(name);
+                if(old != null && old.sameStat(attrs))
+                    manifest.put(name, old);
+                else
+                    manifest.put(name, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), old == null ? NO_HASH : hash(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return manifest;
+    }
+
+    /**
+     * @return the directory file names are relative to
+     */
+    public static Path getBase(Path root) {
+        Path absolute = root.toAbsolutePath();
+        return Files.isDirectory(absolute) ? absolute : absolute.getParent();
+    }
+
+    /**
+     * @return path of the file relative to base, with '/' separators
+     */
+    public static String nameOf(Path base, Path file) {
+        return base.relativize(file.toAbsolutePath()).toString().replace(base.getFileSystem().getSeparator(), "/");
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try(InputStream in = Files.newInputStream(file)) {
+            int read;
+            while((read = in.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b: digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
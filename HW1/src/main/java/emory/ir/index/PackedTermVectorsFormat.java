@@ -0,0 +1,86 @@
+package emory.ir.index;
+
+import org.apache.lucene.codecs.TermVectorsFormat;
+import org.apache.lucene.codecs.TermVectorsReader;
+import org.apache.lucene.codecs.TermVectorsWriter;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+
+import java.io.IOException;
+
+/**
+ * Term vectors with freqs only, for feedback that reads (term, freq) pairs of whole documents.
+ * Each segment has a dictionary of the terms of its vectors; a vector is the ordinals of its terms in that dictionary,
+ * ascending, and their freqs, both bit-packed, so {@link PackedTermVectorsReader#read} decodes a vector into arrays
+ * in one call instead of a TermsEnum and PostingsEnum per term. Positions, offsets and payloads are not supported.
+ *
+ * Files, each with an index header and a checksum footer:
+ * - terms (.ptt): vInt numTerms | per term in byte order: vInt prefix shared with the previous term, vInt suffix length, suffix bytes
+ * - index (.ptx): vInt maxTerms of a vector | vInt numDocs | per doc and at the end: vLong delta of its pointer into the data
+ * - data (.ptd): per doc: vInt numFields | per field: vInt field number, vInt numTerms,
+ *   and unless empty: byte bits per ordinal delta, byte bits per freq, vInt first ordinal,
+ *   numTerms - 1 packed (delta - 1), numTerms packed (freq - 1)
+ */
+public class PackedTermVectorsFormat extends TermVectorsFormat {
+
+    static final String CODEC_NAME = "PackedTermVectors";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    static final String TERMS_EXTENSION = "ptt";
+    static final String INDEX_EXTENSION = "ptx";
+    static final String DATA_EXTENSION = "ptd";
+    static final String TEMP_EXTENSION = "ptv";
+
+    @Override
+    public TermVectorsReader vectorsReader(Directory directory, SegmentInfo segmentInfo, FieldInfos fieldInfos,
+                                           IOContext context) throws IOException {
+        return new PackedTermVectorsReader(directory, segmentInfo, fieldInfos, context);
+    }
+
+    @Override
+    public TermVectorsWriter vectorsWriter(Directory directory, SegmentInfo segmentInfo, IOContext context) throws IOException {
+        return new PackedTermVectorsWriter(directory, segmentInfo, context);
+    }
+
+    /**
+     * @return bytes of count packed values
+     */
+    static int packedBytes(int count, int bitsPerValue) {
+        return (int)(((long)count * bitsPerValue + 7) >>> 3);
+    }
+
+    /**
+     * Write the values as bitsPerValue-bit integers, lowest bits first.
+     */
+    static void pack(int[] values, int from, int to, int bitsPerValue, DataOutput out) throws IOException {
+        long buffer = 0;
+        int numBits = 0;
+        for(int i = from; i < to; ++i) {
+            buffer |= (long)values[i] << numBits;
+            numBits += bitsPerValue;
+            for(; numBits >= 8; numBits -= 8, buffer >>>= 8)
+                out.writeByte((byte)buffer);
+        }
+        if(numBits > 0)
+            out.writeByte((byte)buffer);
+    }
+
+    /**
+     * Read count values written by {@link #pack} from the bytes into values[offset, offset + count).
+     */
+    static void unpack(byte[] bytes, int pos, int bitsPerValue, int[] values, int offset, int count) {
+        long mask = (1L << bitsPerValue) - 1;
+        long buffer = 0;
+        int numBits = 0;
+        for(int i = offset, end = offset + count; i < end; ++i) {
+            for(; numBits < bitsPerValue; numBits += 8)
+                buffer |= (bytes[pos++] & 0xFFL) << numBits;
+            values[i] = (int)(buffer & mask);
+            buffer >>>= bitsPerValue;
+            numBits -= bitsPerValue;
+        }
+    }
+}
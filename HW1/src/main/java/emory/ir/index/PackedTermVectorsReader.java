@@ -0,0 +1,435 @@
+package emory.ir.index;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.TermVectorsReader;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads {@link PackedTermVectorsFormat}. Dictionary and doc pointers are loaded in memory and shared by the clones;
+ * each clone reads the data file with its own input and buffers, so clones are used by one thread at a time.
+ * Besides the Fields of a doc, a vector can be read into arrays with {@link #read}.
+ */
+public class PackedTermVectorsReader extends TermVectorsReader {
+
+    private final FieldInfos fieldInfos;
+    private final byte[] termBytes;
+    private final int[] termStarts;  // ord -> offset into termBytes; numTerms + 1 entries
+    private final long[] pointers;  // doc -> offset into data; maxDoc + 1 entries
+    private final int maxTerms;
+    private final IndexInput data;
+    private final ByteArrayDataInput in = new ByteArrayDataInput();
+    private byte[] block = new byte[64];
+
+    PackedTermVectorsReader(Directory directory, SegmentInfo segmentInfo, FieldInfos fieldInfos, IOContext context) throws IOException {
+        this.fieldInfos = fieldInfos;
+        try(ChecksumIndexInput terms = openChecksumInput(directory, segmentInfo, PackedTermVectorsFormat.TERMS_EXTENSION, context)) {
+            int numTerms = terms.readVInt();
+            termStarts = new int[numTerms + 1];
+            byte[] bytes = new byte[64];
+            int length = 0, previousStart = 0;
+            for(int ord = 0; ord < numTerms; ++ord) {
+                int prefix = terms.readVInt(), suffix = terms.readVInt();
+                bytes = ArrayUtil.grow(bytes, length + prefix + suffix);
+                System.arraycopy(bytes, previousStart, bytes, length, prefix);
+                terms.readBytes(bytes, length + prefix, suffix);
+                termStarts[ord] = previousStart = length;
+                length += prefix + suffix;
+            }
+            termStarts[numTerms] = length;
+            termBytes = ArrayUtil.copyOfSubArray(bytes, 0, length);
+            CodecUtil.checkFooter(terms);
+        }
+        try(ChecksumIndexInput index = openChecksumInput(directory, segmentInfo, PackedTermVectorsFormat.INDEX_EXTENSION, context)) {
+            maxTerms = index.readVInt();
+            int numDocs = index.readVInt();
+            if(numDocs != segmentInfo.maxDoc())
+                throw new CorruptIndexException("Vectors of " + numDocs + " docs, segment has " + segmentInfo.maxDoc(), index);
+            pointers = new long[numDocs + 1];
+            for(int doc = 0; doc <= numDocs; ++doc)
+                pointers[doc] = (doc == 0 ? 0 : pointers[doc - 1]) + index.readVLong();
+            CodecUtil.checkFooter(index);
+        }
+        String dataName = IndexFileNames.segmentFileName(segmentInfo.name, "", PackedTermVectorsFormat.DATA_EXTENSION);
+        IndexInput data = directory.openInput(dataName, context);
+        boolean success = false;
+        try {
+            CodecUtil.checkIndexHeader(data, PackedTermVectorsFormat.CODEC_NAME, PackedTermVectorsFormat.VERSION_START,
+                    PackedTermVectorsFormat.VERSION_CURRENT, segmentInfo.getId(), "");
+            CodecUtil.retrieveChecksum(data);
+            success = true;
+        } finally {
+            if(!success)
+                IOUtils.closeWhileHandlingException(data);
+        }
+        this.data = data;
+    }
+
+    private PackedTermVectorsReader(PackedTermVectorsReader other) {
+        this.fieldInfos = other.fieldInfos;
+        this.termBytes = other.termBytes;
+        this.termStarts = other.termStarts;
+        this.pointers = other.pointers;
+        this.maxTerms = other.maxTerms;
+        this.data = other.data.clone();
+    }
+
+    private static ChecksumIndexInput openChecksumInput(Directory directory, SegmentInfo segmentInfo, String extension,
+                                                        IOContext context) throws IOException {
+        ChecksumIndexInput input = directory.openChecksumInput(IndexFileNames.segmentFileName(segmentInfo.name, "", extension), context);
+        boolean success = false;
+        try {
+            CodecUtil.checkIndexHeader(input, PackedTermVectorsFormat.CODEC_NAME, PackedTermVectorsFormat.VERSION_START,
+                    PackedTermVectorsFormat.VERSION_CURRENT, segmentInfo.getId(), "");
+            success = true;
+            return input;
+        } finally {
+            if(!success)
+                IOUtils.closeWhileHandlingException(input);
+        }
+    }
+
+    /**
+     * @return number of terms in the dictionary of the segment
+     */
+    public int getNumTerms() {
+        return termStarts.length - 1;
+    }
+
+    /**
+     * @return term of the ordinal, pointing into the dictionary
+     */
+    public BytesRef getTerm(int ord, BytesRef scratch) {
+        scratch.bytes = termBytes;
+        scratch.offset = termStarts[ord];
+        scratch.length = termStarts[ord + 1] - termStarts[ord];
+        return scratch;
+    }
+
+    /**
+     * @return most terms of any vector, the size of arrays {@link #read} may fill
+     */
+    public int getMaxTerms() {
+        return maxTerms;
+    }
+
+    /**
+     * Read the vector of a field of the doc in one call: ordinals of its terms in the dictionary, ascending, and their freqs.
+     * @param ords, freqs : at least {@link #getMaxTerms} long
+     * @return number of terms, or -1 if the doc has no vector of the field
+     */
+    public int read(int docId, int fieldNumber, int[] ords, int[] freqs) throws IOException {
+        int numFields = readBlock(docId);
+        for(int f = 0; f < numFields; ++f) {
+            int number = in.readVInt(), size = in.readVInt();
+            if(number == fieldNumber) {
+                readVector(size, ords, freqs);
+                return size;
+            }
+            skipVector(size);
+        }
+        return -1;
+    }
+
+    /**
+     * Read the data of the doc into the block and position the input after its number of fields.
+     * @return number of fields
+     */
+    private int readBlock(int docId) throws IOException {
+        int length = (int)(pointers[docId + 1] - pointers[docId]);
+        block = ArrayUtil.grow(block, length);
+        data.seek(pointers[docId]);
+        data.readBytes(block, 0, length);
+        in.reset(block, 0, length);
+        return in.readVInt();
+    }
+
+    private void readVector(int size, int[] ords, int[] freqs) {
+        if(size == 0)
+            return;
+        int bitsPerDelta = in.readByte(), bitsPerFreq = in.readByte();
+        ords[0] = in.readVInt();
+        int pos = in.getPosition();
+        PackedTermVectorsFormat.unpack(block, pos, bitsPerDelta, ords, 1, size - 1);
+        pos += PackedTermVectorsFormat.packedBytes(size - 1, bitsPerDelta);
+        PackedTermVectorsFormat.unpack(block, pos, bitsPerFreq, freqs, 0, size);
+        in.setPosition(pos + PackedTermVectorsFormat.packedBytes(size, bitsPerFreq));
+        for(int i = 1; i < size; ++i)
+            ords[i] += ords[i - 1] + 1;
+        for(int i = 0; i < size; ++i)
+            ++freqs[i];
+    }
+
+    private void skipVector(int size) {
+        if(size == 0)
+            return;
+        int bitsPerDelta = in.readByte(), bitsPerFreq = in.readByte();
+        in.readVInt();
+        in.setPosition(in.getPosition() + PackedTermVectorsFormat.packedBytes(size - 1, bitsPerDelta)
+                + PackedTermVectorsFormat.packedBytes(size, bitsPerFreq));
+    }
+
+    @Override
+    public Fields get(int docId) throws IOException {
+        int numFields = readBlock(docId);
+        if(numFields == 0)
+            return null;
+        List<String> names = new ArrayList<>(numFields);
+        List<VectorTerms> vectors = new ArrayList<>(numFields);
+        for(int f = 0; f < numFields; ++f) {
+            FieldInfo field = fieldInfos.fieldInfo(in.readVInt());
+            int size = in.readVInt();
+            int[] ords = new int[size], freqs = new int[size];
+            readVector(size, ords, freqs);
+            names.add(field.name);
+            vectors.add(new VectorTerms(ords, freqs));
+        }
+        return new Fields() {
+            @Override
+            public Iterator<String> iterator() {
+                return names.iterator();
+            }
+
+            @Override
+            public Terms terms(String field) {
+                int idx = names.indexOf(field);
+                return idx < 0 ? null : vectors.get(idx);
+            }
+
+            @Override
+            public int size() {
+                return names.size();
+            }
+        };
+    }
+
+    private class VectorTerms extends Terms {
+        private final int[] ords;
+        private final int[] freqs;
+        private final long sumFreq;
+
+        VectorTerms(int[] ords, int[] freqs) {
+            this.ords = ords;
+            this.freqs = freqs;
+            long sum = 0;
+            for(int freq: freqs)
+                sum += freq;
+            this.sumFreq = sum;
+        }
+
+        @Override
+        public TermsEnum iterator() {
+            return new VectorTermsEnum(ords, freqs);
+        }
+
+        @Override
+        public long size() {
+            return ords.length;
+        }
+
+        @Override
+        public long getSumTotalTermFreq() {
+            return sumFreq;
+        }
+
+        @Override
+        public long getSumDocFreq() {
+            return ords.length;
+        }
+
+        @Override
+        public int getDocCount() {
+            return 1;
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return true;
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return false;
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return false;
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return false;
+        }
+    }
+
+    private class VectorTermsEnum extends BaseTermsEnum {
+        private final int[] ords;
+        private final int[] freqs;
+        private final BytesRef term = new BytesRef();
+        private int idx = -1;
+
+        VectorTermsEnum(int[] ords, int[] freqs) {
+            this.ords = ords;
+            this.freqs = freqs;
+        }
+
+        @Override
+        public BytesRef next() {
+            if(idx + 1 >= ords.length) {
+                idx = ords.length;
+                return null;
+            }
+            return getTerm(ords[++idx], term);
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) {
+            // Terms ascend with their ordinals
+            int low = 0, high = ords.length - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = getTerm(ords[mid], term).compareTo(text);
+                if(cmp < 0) {
+                    low = mid + 1;
+                } else if(cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    idx = mid;
+                    return SeekStatus.FOUND;
+                }
+            }
+            idx = low;
+            if(idx == ords.length)
+                return SeekStatus.END;
+            getTerm(ords[idx], term);
+            return SeekStatus.NOT_FOUND;
+        }
+
+        @Override
+        public void seekExact(long ord) {
+            idx = (int)ord;
+            getTerm(ords[idx], term);
+        }
+
+        @Override
+        public BytesRef term() {
+            return term;
+        }
+
+        @Override
+        public long ord() {
+            return idx;
+        }
+
+        @Override
+        public int docFreq() {
+            return 1;
+        }
+
+        @Override
+        public long totalTermFreq() {
+            return freqs[idx];
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) {
+            return new VectorPostingsEnum(freqs[idx]);
+        }
+
+        @Override
+        public ImpactsEnum impacts(int flags) {
+            return new SlowImpactsEnum(postings(null, flags));
+        }
+    }
+
+    /**
+     * The single doc of a vector, doc 0, with the freq of the term
+     */
+    private static class VectorPostingsEnum extends PostingsEnum {
+        private final int freq;
+        private int doc = -1;
+
+        VectorPostingsEnum(int freq) {
+            this.freq = freq;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public int nextPosition() {
+            return -1;
+        }
+
+        @Override
+        public int startOffset() {
+            return -1;
+        }
+
+        @Override
+        public int endOffset() {
+            return -1;
+        }
+
+        @Override
+        public BytesRef getPayload() {
+            return null;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return doc = doc == -1 ? 0 : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+            return doc = doc == -1 && target == 0 ? 0 : NO_MORE_DOCS;
+        }
+
+        @Override
+        public long cost() {
+            return 1;
+        }
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        CodecUtil.checksumEntireFile(data);
+    }
+
+    @Override
+    public TermVectorsReader clone() {
+        return new PackedTermVectorsReader(this);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(termBytes) + RamUsageEstimator.sizeOf(termStarts) + RamUsageEstimator.sizeOf(pointers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+}
@@ -0,0 +1,181 @@
+package emory.ir.index;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.TermVectorsWriter;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes {@link PackedTermVectorsFormat}. The ordinals of the terms are only known once all vectors of the segment
+ * are seen, so vectors first go to a temp file with ids in order of appearance; {@link #finish} writes the sorted
+ * dictionary, then rewrites the vectors with ordinals. Only the dictionary is kept in memory.
+ */
+class PackedTermVectorsWriter extends TermVectorsWriter {
+
+    private final Directory directory;
+    private final SegmentInfo segmentInfo;
+    private final IOContext context;
+    private final BytesRefHash terms = new BytesRefHash();
+    private IndexOutput temp;
+    private int numDocs = 0;
+
+    PackedTermVectorsWriter(Directory directory, SegmentInfo segmentInfo, IOContext context) throws IOException {
+        this.directory = directory;
+        this.segmentInfo = segmentInfo;
+        this.context = context;
+        this.temp = directory.createTempOutput(segmentInfo.name, PackedTermVectorsFormat.TEMP_EXTENSION, context);
+    }
+
+    @Override
+    public void startDocument(int numVectorFields) throws IOException {
+        temp.writeVInt(numVectorFields);
+        ++numDocs;
+    }
+
+    @Override
+    public void startField(FieldInfo info, int numTerms, boolean positions, boolean offsets, boolean payloads) throws IOException {
+        if(positions || offsets || payloads)
+            throw new IllegalArgumentException("Packed term vectors keep freqs only; field " + info.name
+                    + " has term vector positions, offsets or payloads");
+        temp.writeVInt(info.number);
+        temp.writeVInt(numTerms);
+    }
+
+    @Override
+    public void startTerm(BytesRef term, int freq) throws IOException {
+        int id = terms.add(term);
+        temp.writeVInt(id < 0 ? -id - 1 : id);
+        temp.writeVInt(freq);
+    }
+
+    @Override
+    public void addPosition(int position, int startOffset, int endOffset, BytesRef payload) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void finish(FieldInfos fieldInfos, int numDocs) throws IOException {
+        if(numDocs != this.numDocs)
+            throw new IllegalStateException("Wrote " + this.numDocs + " docs, finish called with numDocs=" + numDocs);
+        String tempName = temp.getName();
+        temp.close();
+        temp = null;
+
+        // Dictionary in byte order; ids of the temp file map to ordinals
+        int numTerms = terms.size();
+        int[] sortedIds = terms.sort();
+        int[] ords = new int[numTerms];
+        for(int ord = 0; ord < numTerms; ++ord)
+            ords[sortedIds[ord]] = ord;
+        try(IndexOutput out = createOutput(PackedTermVectorsFormat.TERMS_EXTENSION)) {
+            out.writeVInt(numTerms);
+            BytesRef term = new BytesRef(), previous = new BytesRef();
+            for(int ord = 0; ord < numTerms; ++ord) {
+                terms.get(sortedIds[ord], term);
+                int prefix = ord == 0 ? 0 : StringHelper.bytesDifference(previous, term);
+                out.writeVInt(prefix);
+                out.writeVInt(term.length - prefix);
+                out.writeBytes(term.bytes, term.offset + prefix, term.length - prefix);
+                BytesRef swap = previous;
+                previous = term;
+                term = swap;
+            }
+            CodecUtil.writeFooter(out);
+        }
+
+        long[] pointers = new long[numDocs + 1];
+        int maxTerms = 0;
+        try(IndexInput in = directory.openInput(tempName, IOContext.READONCE);
+            IndexOutput data = createOutput(PackedTermVectorsFormat.DATA_EXTENSION)) {
+            long[] entries = new long[16];
+            int[] values = new int[16];
+            for(int doc = 0; doc < numDocs; ++doc) {
+                pointers[doc] = data.getFilePointer();
+                int numFields = in.readVInt();
+                data.writeVInt(numFields);
+                for(int f = 0; f < numFields; ++f) {
+                    int fieldNumber = in.readVInt(), size = in.readVInt();
+                    data.writeVInt(fieldNumber);
+                    data.writeVInt(size);
+                    if(size == 0)
+                        continue;
+                    maxTerms = Math.max(maxTerms, size);
+                    // (ordinal, freq) packed in a long, sorted by ordinal
+                    entries = ArrayUtil.grow(entries, size);
+                    values = ArrayUtil.grow(values, size);
+                    for(int i = 0; i < size; ++i)
+                        entries[i] = ((long)ords[in.readVInt()] << 32) | in.readVInt();
+                    Arrays.sort(entries, 0, size);
+                    int maxDelta = 0, maxFreq = 0;
+                    for(int i = 1; i < size; ++i) {
+                        values[i] = (int)(entries[i] >>> 32) - (int)(entries[i - 1] >>> 32) - 1;
+                        maxDelta = Math.max(maxDelta, values[i]);
+                    }
+                    int bitsPerDelta = PackedInts.bitsRequired(maxDelta);
+                    for(int i = 0; i < size; ++i)
+                        maxFreq = Math.max(maxFreq, (int)entries[i] - 1);
+                    int bitsPerFreq = PackedInts.bitsRequired(maxFreq);
+                    data.writeByte((byte)bitsPerDelta);
+                    data.writeByte((byte)bitsPerFreq);
+                    data.writeVInt((int)(entries[0] >>> 32));
+                    PackedTermVectorsFormat.pack(values, 1, size, bitsPerDelta, data);
+                    for(int i = 0; i < size; ++i)
+                        values[i] = (int)entries[i] - 1;
+                    PackedTermVectorsFormat.pack(values, 0, size, bitsPerFreq, data);
+                }
+            }
+            pointers[numDocs] = data.getFilePointer();
+            CodecUtil.writeFooter(data);
+        } finally {
+            IOUtils.deleteFilesIgnoringExceptions(directory, tempName);
+        }
+
+        try(IndexOutput out = createOutput(PackedTermVectorsFormat.INDEX_EXTENSION)) {
+            out.writeVInt(maxTerms);
+            out.writeVInt(numDocs);
+            for(int doc = 0; doc <= numDocs; ++doc)
+                out.writeVLong(doc == 0 ? pointers[0] : pointers[doc] - pointers[doc - 1]);
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    private IndexOutput createOutput(String extension) throws IOException {
+        IndexOutput out = directory.createOutput(IndexFileNames.segmentFileName(segmentInfo.name, "", extension), context);
+        boolean success = false;
+        try {
+            CodecUtil.writeIndexHeader(out, PackedTermVectorsFormat.CODEC_NAME, PackedTermVectorsFormat.VERSION_CURRENT,
+                    segmentInfo.getId(), "");
+            success = true;
+            return out;
+        } finally {
+            if(!success)
+                IOUtils.closeWhileHandlingException(out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(temp != null) {
+            // Aborted before finish
+            String tempName = temp.getName();
+            IOUtils.closeWhileHandlingException(temp);
+            temp = null;
+            IOUtils.deleteFilesIgnoringExceptions(directory, tempName);
+        }
+    }
+}
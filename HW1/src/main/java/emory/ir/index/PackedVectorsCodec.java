@@ -0,0 +1,25 @@
+package emory.ir.index;
+
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.TermVectorsFormat;
+import org.apache.lucene.codecs.lucene84.Lucene84Codec;
+
+/**
+ * Lucene's default codec with term vectors in the {@link PackedTermVectorsFormat}.
+ * Registered as a service under {@link #NAME}, so segments written with it are read back by name.
+ */
+public class PackedVectorsCodec extends FilterCodec {
+
+    public static final String NAME = "PackedVectors";
+
+    private final TermVectorsFormat termVectorsFormat = new PackedTermVectorsFormat();
+
+    public PackedVectorsCodec() {
+        super(NAME, new Lucene84Codec());
+    }
+
+    @Override
+    public TermVectorsFormat termVectorsFormat() {
+        return termVectorsFormat;
+    }
+}
@@ -0,0 +1,128 @@
+package emory.ir.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a stream ahead on another thread, so producing its bytes (e.g. decompressing) overlaps with consuming them.
+ * Buffers are handed over through a bounded queue and recycled, so at most numBuffers are read ahead.
+ * The source is read and closed by the reading thread; this stream is not thread-safe.
+ */
+class ReadAheadInputStream extends InputStream {
+
+    private static final ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Chunk {
+        final byte[] buffer;
+        final int length;  // -1 at the end of the stream
+        final IOException error;
+
+        Chunk(byte[] buffer, int length, IOException error) {
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<byte[]> free;
+    private final InputStream source;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Future<?> reader;
+    private Chunk chunk = null;
+    private int pos = 0;
+    private boolean eof = false;
+
+    ReadAheadInputStream(InputStream source, int bufferSize, int numBuffers) {
+        full = new ArrayBlockingQueue<>(numBuffers + 1);
+        free = new ArrayBlockingQueue<>(numBuffers);
+        for(int i = 0; i < numBuffers; ++i)
+            free.add(new byte[bufferSize]);
+        this.source = source;
+        reader = readers.submit(this::readAhead);
+    }
+
+    private void readAhead() {
+        if(!started.compareAndSet(false, true))
+            return;  // Closed before it started
+        IOException error = null;
+        try(InputStream in = source) {
+            while(true) {
+                byte[] buffer = free.take();
+                int length = 0, n = 0;
+                while(length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) >= 0)
+                    length += n;
+                if(length > 0)
+                    full.put(new Chunk(buffer, length, null));
+                if(n < 0)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            return;  // Closed before the end
+        } catch (IOException e) {
+            error = e;
+        } catch (Throwable e) {
+            // e.g. IllegalArgumentException from ZipInputStream on a malformed entry name
+            error = new IOException(e);
+        }
+        // Always end the stream, so the consumer does not wait forever; there is room, as each chunk before holds
+        // one of the numBuffers buffers
+        full.offer(new Chunk(null, -1, error));
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if(eof)
+            return false;
+        if(chunk != null && pos < chunk.length)
+            return true;
+        if(chunk != null && chunk.buffer != null)
+            free.add(chunk.buffer);
+        try {
+            chunk = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        pos = 0;
+        eof = chunk.length < 0;
+        if(chunk.error != null)
+            throw chunk.error;
+        return !eof;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? chunk.buffer[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        if(!fill())
+            return -1;
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk.buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        if(started.compareAndSet(false, true))
+            source.close();
+        else
+            reader.cancel(true);  // Stops the reader if it is blocked on a full queue; it closes the source
+    }
+}
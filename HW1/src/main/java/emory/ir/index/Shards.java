@@ -0,0 +1,96 @@
+package emory.ir.index;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Layout of a sharded index: one Lucene index per "shard-N" subdirectory of the index dir,
+ * with each document in the shard given by the hash of its DOCNO.
+ */
+public class Shards {
+
+    private static final String PREFIX = "shard-";
+
+    private Shards() {
+    }
+
+    /**
+     * @return shard of the document; stable across runs, so updates by DOCNO find the previous version
+     */
+    public static int of(String docNo, int numShards) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(docNo), 0), numShards);
+    }
+
+    public static Path getShard(Path index, int shard) {
+        return index.resolve(PREFIX + shard);
+    }
+
+    /**
+     * @return shard directories of the index in shard order; empty if the index is not sharded
+     */
+    public static List<Path> list(Path index) throws IOException {
+        if(!Files.isDirectory(index))
+            return new ArrayList<>();
+        try(Stream<Path> files = Files.list(index)) {
+            return files.filter(file -> Files.isDirectory(file) && file.getFileName().toString().matches(PREFIX + "\\d+"))
+                    .sorted(Comparator.comparingInt(file -> Integer.parseInt(file.getFileName().toString().substring(PREFIX.length()))))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Open an index, sharded or not. Shards are combined in a {@link MultiReader}, so term and collection statistics
+     * stay global and scores match those of a single index.
+     */
+    public static IndexReader open(Path index) throws IOException {
+        return open(index, DirectoryType.AUTO, Collections.emptySet());
+    }
+
+    /**
+     * Open an index, sharded or not, with every directory opened as given.
+     */
+    public static IndexReader open(Path index, DirectoryType type, Set<String> preloadExtensions) throws IOException {
+        List<Path> shards = list(index);
+        if(shards.isEmpty())
+            return DirectoryReader.open(type.open(index, preloadExtensions));
+        IndexReader[] readers = new IndexReader[shards.size()];
+        boolean success = false;
+        try {
+            for(int i = 0; i < readers.length; ++i)
+                readers[i] = DirectoryReader.open(type.open(shards.get(i), preloadExtensions));
+            success = true;
+        } finally {
+            if(!success)
+                IOUtils.closeWhileHandlingException(readers);
+        }
+        return new MultiReader(readers, true);
+    }
+
+    /**
+     * @return number of shards of the reader opened by {@link #open}; 1 if the index is not sharded
+     */
+    public static int count(IndexReader reader) {
+        return reader instanceof MultiReader ? ((MultiReader)reader).getContext().children().size() : 1;
+    }
+
+    /**
+     * Delete shard directories from a previous build, from the given shard on.
+     */
+    static void deleteFrom(Path index, int shard) throws IOException {
+        for(Path dir: list(index)) {
+            if(Integer.parseInt(dir.getFileName().toString().substring(PREFIX.length())) >= shard)
+                IOUtils.rm(dir);
+        }
+    }
+}
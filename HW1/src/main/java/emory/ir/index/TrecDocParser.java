@@ -0,0 +1,272 @@
+package emory.ir.index;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Single-pass streaming parser for TREC SGML files, a hand-written state machine over a char buffer.
+ * Only DOCNO and TEXT of each {@code <DOC>} are extracted; no DOM is built.
+ * Markup is handled leniently: unknown tags inside TEXT are dropped but their content is kept (as the DOM text content would),
+ * {@code <F P=..>} and {@code <FIG ..>} content is dropped up to its end tag or end of line,
+ * and unknown entities or stray '<' are kept as text instead of failing the whole file.
+ * The parser and its buffers are reused across files: call {@link #reset(Reader)} then {@link #nextDoc()} until it returns false.
+ */
+public class TrecDocParser {
+
+    private static final int OUTSIDE = 0, IN_DOC = 1, IN_DOCNO = 2, IN_TEXT = 3, IN_SKIPPED = 4;
+    private static final int NOT_TAG = 0, START_TAG = 1, END_TAG = 2;
+
+    private Reader in;
+    private final char[] buf = new char[1 << 16];
+    private int pos = 0, limit = 0;
+
+    private final StringBuilder tagName = new StringBuilder();
+    private final StringBuilder entityName = new StringBuilder();
+    private final StringBuilder docNo = new StringBuilder();
+    private char[] text = new char[1 << 14];
+    private int textLen = 0;
+    private boolean hasDocNo, hasText;
+    private final TextReader textReader = new TextReader();
+
+    public void reset(Reader in) {
+        this.in = in;
+        pos = limit = 0;
+    }
+
+    /**
+     * Advance to the next {@code <DOC>}.
+     * @return false at the end of input; a trailing unterminated document is dropped
+     */
+    public boolean nextDoc() throws IOException {
+        docNo.setLength(0);
+        textLen = 0;
+        hasDocNo = hasText = false;
+        textReader.offset = 0;
+
+        int state = OUTSIDE;
+        int c;
+        while((c = read()) >= 0) {
+            if(c == '<') {
+                int tagType = readTag();
+                if(tagType == NOT_TAG) {
+                    append(state, '<');
+                    for(int i = 0; i < tagName.length(); ++i)
+                        append(state, tagName.charAt(i));
+                    continue;
+                }
+                boolean start = tagType == START_TAG;
+                if(state == OUTSIDE) {
+                    if(start && isTag("DOC"))
+                        state = IN_DOC;
+                } else if(!start && isTag("DOC")) {
+                    hasDocNo |= state == IN_DOCNO;
+                    hasText |= state == IN_TEXT || state == IN_SKIPPED;
+                    return true;
+                } else if(state == IN_DOC) {
+                    // Only the first DOCNO and TEXT are used
+                    if(start && isTag("DOCNO") && !hasDocNo)
+                        state = IN_DOCNO;
+                    else if(start && isTag("TEXT") && !hasText)
+                        state = IN_TEXT;
+                } else if(state == IN_DOCNO) {
+                    if(!start && isTag("DOCNO")) {
+                        hasDocNo = true;
+                        state = IN_DOC;
+                    }
+                } else if(state == IN_TEXT) {
+                    if(!start && isTag("TEXT")) {
+                        hasText = true;
+                        state = IN_DOC;
+                    } else if(start && (isTag("F") || isTag("FIG"))) {
+                        state = IN_SKIPPED;
+                    }
+                } else if(state == IN_SKIPPED) {
+                    if(!start && (isTag("F") || isTag("FIG"))) {
+                        state = IN_TEXT;
+                    } else if(!start && isTag("TEXT")) {
+                        hasText = true;
+                        state = IN_DOC;
+                    }
+                }
+            } else if(c == '&' && (state == IN_TEXT || state == IN_DOCNO)) {
+                readEntity(state);
+            } else if(state == IN_SKIPPED) {
+                if(c == '\n') {
+                    state = IN_TEXT;
+                    append(state, ' ');
+                }
+            } else {
+                append(state, (char)c);
+            }
+        }
+        return false;
+    }
+
+    public boolean hasDocNo() {
+        return hasDocNo;
+    }
+
+    public boolean hasText() {
+        return hasText;
+    }
+
+    public String getDocNo() {
+        return docNo.toString().trim();
+    }
+
+    public String getText() {
+        return new String(text, 0, textLen).trim();
+    }
+
+    /**
+     * @return copy of the TEXT of the current document, untrimmed as {@link #getTextReader()} reads it
+     */
+    public char[] copyText() {
+        return Arrays.copyOf(text, textLen);
+    }
+
+    /**
+     * A reader over the TEXT of the current document from its start, without copying it; reused across documents.
+     */
+    public Reader getTextReader() {
+        textReader.offset = 0;
+        return textReader;
+    }
+
+    private void append(int state, char c) {
+        if(state == IN_TEXT) {
+            if(textLen == text.length)
+                text = ArrayUtil.grow(text, textLen + 1);
+            text[textLen++] = c;
+        } else if(state == IN_DOCNO) {
+            docNo.append(c);
+        }
+    }
+
+    private boolean isTag(String name) {
+        return name.contentEquals(tagName);
+    }
+
+    /**
+     * Read the tag after '<' into {@link #tagName}.
+     */
+    private int readTag() throws IOException {
+        tagName.setLength(0);
+        int c = peek();
+        if(c == '!' || c == '?') {
+            // Comment or declaration
+            skipTo('>');
+            return END_TAG;
+        }
+        boolean end = c == '/';
+        if(end) {
+            read();
+            c = peek();
+        }
+        if(c < 0 || !Character.isLetter(c)) {
+            if(end)
+                tagName.append('/');  // Consumed, to be kept as text
+            return NOT_TAG;
+        }
+        while((c = peek()) >= 0 && (Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+            tagName.append((char)read());
+        }
+        // Skip attributes; an unterminated tag ends at the end of line or the next tag
+        while((c = peek()) >= 0 && c != '>' && c != '\n' && c != '<')
+            read();
+        if(c == '>')
+            read();
+        return end ? END_TAG : START_TAG;
+    }
+
+    private void readEntity(int state) throws IOException {
+        StringBuilder name = entityName;
+        name.setLength(0);
+        int c;
+        while(name.length() < 10 && (c = peek()) >= 0 && (Character.isLetterOrDigit(c) || c == '#'))
+            name.append((char)read());
+        boolean terminated = peek() == ';';
+        if(terminated)
+            read();
+
+        int decoded = -1;
+        String entity = name.toString();
+        if(terminated) {
+            if(entity.equals("amp")) decoded = '&';
+            else if(entity.equals("lt")) decoded = '<';
+            else if(entity.equals("gt")) decoded = '>';
+            else if(entity.equals("quot")) decoded = '"';
+            else if(entity.equals("apos")) decoded = '\'';
+            else if(entity.startsWith("#x") && entity.length() > 2) decoded = parseCodePoint(entity.substring(2), 16);
+            else if(entity.startsWith("#") && entity.length() > 1) decoded = parseCodePoint(entity.substring(1), 10);
+        }
+        if(decoded >= 0) {
+            for(char ch: Character.toChars(decoded))
+                append(state, ch);
+        } else {
+            // Unknown entity, keep as text
+            append(state, '&');
+            for(int i = 0; i < entity.length(); ++i)
+                append(state, entity.charAt(i));
+            if(terminated)
+                append(state, ';');
+        }
+    }
+
+    private static int parseCodePoint(String digits, int radix) {
+        try {
+            int codePoint = Integer.parseInt(digits, radix);
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void skipTo(char target) throws IOException {
+        int c;
+        while((c = read()) >= 0 && c != target);
+    }
+
+    private int read() throws IOException {
+        if(pos == limit && !fill())
+            return -1;
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        if(pos == limit && !fill())
+            return -1;
+        return buf[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if(n <= 0)
+            return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private class TextReader extends Reader {
+        private int offset = 0;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if(offset >= textLen)
+                return -1;
+            int n = Math.min(len, textLen - offset);
+            System.arraycopy(text, offset, cbuf, off, n);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // Closed by the analyzer after each document, rewound by getTextReader()
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collection language model of {@link DocField#TEXT}: term -> collection frequency, shared by all queries on a reader.
+ * Terms get ordinals in term dictionary order; a term is found with one hash probe, then its stats are array reads.
+ * For an index on the file system the model is persisted as a sidecar file in the index directory and memory-mapped;
+ * the sidecar records the commit it was built from and is rebuilt when the index commit changes.
+ * If the sidecar cannot be written, e.g. on a read-only index, the model is kept in memory.
+ *
+ * File layout: header | long[numTerms] totalTermFreqs | int[numTerms + 1] termOffsets | int[tableSize] hash table | term bytes
+ */
+public class CollectionModel {
+
+    public static final String FILE_NAME = "collection-lm.bin";
+
+    private static final int MAGIC = 0x434c4d31;  // "CLM1"
+    private static final int HEADER_BYTES = 40;
+
+    private static final ReaderCache<CollectionModel> models = new ReaderCache<>(CollectionModel::load);
+
+    private final long sumTotalTermFreq;
+    private final int numTerms;
+    private final int tableMask;
+    private final LongBuffer totalTermFreqs;
+    private final IntBuffer termOffsets;
+    private final IntBuffer table;
+    private final ByteBuffer termBytes;
+
+    private CollectionModel(ByteBuffer data) {
+        sumTotalTermFreq = data.getLong(24);
+        numTerms = data.getInt(32);
+        int tableSize = data.getInt(36);
+        tableMask = tableSize - 1;
+
+        int offset = HEADER_BYTES;
+        totalTermFreqs = slice(data, offset).asLongBuffer();
+        offset += numTerms * 8;
+        termOffsets = slice(data, offset).asIntBuffer();
+        offset += (numTerms + 1) * 4;
+        table = slice(data, offset).asIntBuffer();
+        offset += tableSize * 4;
+        termBytes = slice(data, offset);
+    }
+
+    /**
+     * Get the model of the reader, loading or building it on first use.
+     */
+    public static CollectionModel get(IndexReader reader) throws IOException {
+        return models.get(reader);
+    }
+
+    private static CollectionModel load(IndexReader reader) throws IOException {
+        Path file = getSidecarFile(reader);
+        if(file == null)
+            return new CollectionModel(build(reader, 0, 0));
+
+        DirectoryReader directoryReader = (DirectoryReader)reader;
+        long generation = directoryReader.getIndexCommit().getGeneration();
+        long version = directoryReader.getVersion();
+        if(Files.exists(file)) {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(data.capacity() >= HEADER_BYTES && data.getInt(0) == MAGIC
+                        && data.getLong(8) == generation && data.getLong(16) == version)
+                    return new CollectionModel(data);
+            }
+        }
+
+        // Missing or stale: rebuild and replace atomically; the sidecar is only a cache, so a read-only index is searched
+        // with the model in memory
+        ByteBuffer data = build(reader, generation, version);
+        try {
+            write(data, file);
+        } catch (IOException e) {
+            System.out.println("Cannot write " + file + ", using the collection model in memory: " + e);
+        }
+        return new CollectionModel(data);
+    }
+
+    private static void write(ByteBuffer data, Path file) throws IOException {
+        Path tmpFile = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+        try {
+            try(FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                ByteBuffer out = data.duplicate();
+                while(out.hasRemaining())
+                    channel.write(out);
+                channel.force(true);
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * @return sidecar location, or null if the reader is not a single index on the file system
+     */
+    private static Path getSidecarFile(IndexReader reader) {
+        if(!(reader instanceof DirectoryReader))
+            return null;
+        Directory directory = FilterDirectory.unwrap(((DirectoryReader)reader).directory());
+        if(!(directory instanceof FSDirectory))
+            return null;
+        return ((FSDirectory)directory).getDirectory().resolve(FILE_NAME);
+    }
+
+    private static ByteBuffer build(IndexReader reader, long generation, long version) throws IOException {
+        long[] totalTermFreqs = new long[1024];
+        int[] termOffsets = new int[1025];
+        byte[] bytes = new byte[1 << 16];
+        int numTerms = 0;
+
+        Terms terms = MultiTerms.getTerms(reader, DocField.TEXT);
+        if(terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef term;
+            while((term = termsEnum.next()) != null) {
+                if(numTerms == totalTermFreqs.length) {
+                    totalTermFreqs = ArrayUtil.grow(totalTermFreqs);
+                    termOffsets = ArrayUtil.growExact(termOffsets, totalTermFreqs.length + 1);
+                }
+                int offset = termOffsets[numTerms];
+                if((long)offset + term.length > Integer.MAX_VALUE)
+                    throw new IllegalStateException("Term dictionary too large for " + FILE_NAME);
+                bytes = ArrayUtil.grow(bytes, offset + term.length);
+                System.arraycopy(term.bytes, term.offset, bytes, offset, term.length);
+                totalTermFreqs[numTerms] = termsEnum.totalTermFreq();
+                termOffsets[++numTerms] = offset + term.length;
+            }
+        }
+        int numBytes = termOffsets[numTerms];
+        int tableSize = Integer.highestOneBit(Math.max(numTerms, 8) * 2 - 1) << 1;
+
+        long size = HEADER_BYTES + numTerms * 8L + (numTerms + 1) * 4L + tableSize * 4L + numBytes;
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Term dictionary too large for " + FILE_NAME);
+        ByteBuffer data = ByteBuffer.allocate((int)size);
+        data.putInt(MAGIC).putInt(0).putLong(generation).putLong(version)
+                .putLong(reader.getSumTotalTermFreq(DocField.TEXT)).putInt(numTerms).putInt(tableSize);
+        for(int ord = 0; ord < numTerms; ++ord)
+            data.putLong(totalTermFreqs[ord]);
+        for(int ord = 0; ord <= numTerms; ++ord)
+            data.putInt(termOffsets[ord]);
+
+        // Open addressing with linear probing, load factor <= 0.5
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        BytesRef scratch = new BytesRef(bytes);
+        for(int ord = 0; ord < numTerms; ++ord) {
+            scratch.offset = termOffsets[ord];
+            scratch.length = termOffsets[ord + 1] - termOffsets[ord];
+            int slot = StringHelper.murmurhash3_x86_32(scratch, 0) & (tableSize - 1);
+            while(table[slot] >= 0)
+                slot = (slot + 1) & (tableSize - 1);
+            table[slot] = ord;
+        }
+        for(int slot: table)
+            data.putInt(slot);
+        data.put(bytes, 0, numBytes);
+        data.flip();
+        return data;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset) {
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        return view.slice();
+    }
+
+    /**
+     * @return ordinal of the term, or -1 if it is not in the collection
+     */
+    public int getOrd(BytesRef term) {
+        int slot = StringHelper.murmurhash3_x86_32(term, 0) & tableMask;
+        int ord;
+        while((ord = table.get(slot)) >= 0) {
+            if(termEquals(ord, term))
+                return ord;
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    private boolean termEquals(int ord, BytesRef term) {
+        int start = termOffsets.get(ord), end = termOffsets.get(ord + 1);
+        if(end - start != term.length)
+            return false;
+        for(int i = 0; i < term.length; ++i) {
+            if(termBytes.get(start + i) != term.bytes[term.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    public BytesRef getTerm(int ord, BytesRef scratch) {
+        int start = termOffsets.get(ord), length = termOffsets.get(ord + 1) - start;
+        scratch.bytes = ArrayUtil.grow(scratch.bytes, length);
+        for(int i = 0; i < length; ++i)
+            scratch.bytes[i] = termBytes.get(start + i);
+        scratch.offset = 0;
+        scratch.length = length;
+        return scratch;
+    }
+
+    public long getTotalTermFreq(int ord) {
+        return totalTermFreqs.get(ord);
+    }
+
+    /**
+     * @return collection probability of the term
+     */
+    public double getProb(int ord) {
+        return totalTermFreqs.get(ord) / (double)sumTotalTermFreq;
+    }
+
+    public long getSumTotalTermFreq() {
+        return sumTotalTermFreq;
+    }
+
+    /**
+     * @return number of unique terms in the collection
+     */
+    public int size() {
+        return numTerms;
+    }
+}
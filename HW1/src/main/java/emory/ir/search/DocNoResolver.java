@@ -0,0 +1,64 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves Lucene doc ids of hits to DOCNO.
+ * Reads the {@link DocField#DOC_NO} sorted doc values column-wise, in doc id order;
+ * segments indexed without doc values fall back to stored fields.
+ * Thread-safe: doc values iterators are created per call.
+ */
+public class DocNoResolver {
+
+    private static final Set<String> DOC_NO_FIELDS = Collections.singleton(DocField.DOC_NO);
+
+    private final IndexReader reader;
+
+    public DocNoResolver(IndexReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return docNo of each hit, in hit order
+     */
+    public String[] resolve(ScoreDoc[] hits) throws IOException {
+        // Visit hits in doc id order: (docId, hit index) packed in a long
+        long[] order = new long[hits.length];
+        for(int i = 0; i < hits.length; ++i)
+            order[i] = ((long)hits[i].doc << 32) | i;
+        Arrays.sort(order);
+
+        String[] docNos = new String[hits.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+        int leafIdx = -1, leafEnd = 0;
+        LeafReaderContext leaf = null;
+        SortedDocValues values = null;
+        for(long entry: order) {
+            int docId = (int)(entry >>> 32), hitIdx = (int)entry;
+            while(docId >= leafEnd) {
+                leaf = leaves.get(++leafIdx);
+                leafEnd = leaf.docBase + leaf.reader().maxDoc();
+                values = hasDocValues(leaf.reader()) ? DocValues.getSorted(leaf.reader(), DocField.DOC_NO) : null;
+            }
+            int leafDocId = docId - leaf.docBase;
+            if(values == null)
+                docNos[hitIdx] = leaf.reader().document(leafDocId, DOC_NO_FIELDS).get(DocField.DOC_NO);
+            else if(values.advanceExact(leafDocId))
+                docNos[hitIdx] = values.binaryValue().utf8ToString();
+        }
+        return docNos;
+    }
+
+    private static boolean hasDocValues(LeafReader leafReader) {
+        FieldInfo fieldInfo = leafReader.getFieldInfos().fieldInfo(DocField.DOC_NO);
+        return fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.SORTED;
+    }
+}
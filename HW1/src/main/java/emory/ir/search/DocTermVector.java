@@ -0,0 +1,56 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+
+/**
+ * Decoded term vector of a document: (term ordinal in the {@link CollectionModel}, freq) pairs in ascending ordinal order.
+ */
+public class DocTermVector implements Accountable {
+
+    private static final long BASE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(DocTermVector.class);
+
+    public final int[] ords;
+    public final int[] freqs;
+    public final int length;  // Doc length
+
+    public DocTermVector(int[] ords, int[] freqs, int length) {
+        this.ords = ords;
+        this.freqs = freqs;
+        this.length = length;
+    }
+
+    public int size() {
+        return ords.length;
+    }
+
+    public static DocTermVector read(IndexReader reader, CollectionModel collectionModel, int docId) throws IOException {
+        Terms termVec = reader.getTermVector(docId, DocField.TEXT);
+        int size = (int)termVec.size();
+        int[] ords = new int[size], freqs = new int[size];
+        TermsEnum terms = termVec.iterator();
+        BytesRef term;
+        int i = 0;
+        while((term = terms.next()) != null) {
+            int ord = collectionModel.getOrd(term);
+            if(ord < 0)
+                throw new IllegalStateException("Term of doc " + docId + " is not in the collection model: " + term.utf8ToString());
+            ords[i] = ord;
+            freqs[i] = (int)terms.totalTermFreq();  // Freq within the document
+            ++i;
+        }
+        return new DocTermVector(ords, freqs, (int)termVec.getSumTotalTermFreq());
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES + RamUsageEstimator.sizeOf(ords) + RamUsageEstimator.sizeOf(freqs);
+    }
+}
@@ -0,0 +1,109 @@
+package emory.ir.search;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Effectiveness of a ranking against TREC relevance judgments, as computed by trec_eval.
+ */
+public class Evaluation {
+
+    private Evaluation() {
+    }
+
+    /**
+     * Read a TREC qrels file: "topic iteration docNo relevance" per line.
+     * @return topic -> docNo -> relevance
+     */
+    public static Map<Integer, Map<String, Integer>> readQrels(Path file) throws IOException {
+        Map<Integer, Map<String, Integer>> qrels = new HashMap<>();
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if(fields.length < 4)
+                    continue;
+                qrels.computeIfAbsent(Integer.parseInt(fields[0]), topic -> new HashMap<>())
+                        .put(fields[2], Integer.parseInt(fields[3]));
+            }
+        }
+        return qrels;
+    }
+
+    private static int numRelevant(Map<String, Integer> judgments) {
+        int numRelevant = 0;
+        for(int relevance: judgments.values()) {
+            if(relevance > 0)
+                ++numRelevant;
+        }
+        return numRelevant;
+    }
+
+    private static int numNonRelevant(Map<String, Integer> judgments) {
+        return judgments.size() - numRelevant(judgments);
+    }
+
+    private static boolean isRelevant(Map<String, Integer> judgments, String docNo) {
+        return judgments.getOrDefault(docNo, 0) > 0;
+    }
+
+    /**
+     * @param docNos : ranking, best first
+     */
+    public static double averagePrecision(String[] docNos, Map<String, Integer> judgments) {
+        int numRelevant = numRelevant(judgments);
+        if(numRelevant == 0)
+            return 0;
+        double sum = 0;
+        int numRelevantRetrieved = 0;
+        for(int i = 0; i < docNos.length; ++i) {
+            if(isRelevant(judgments, docNos[i]))
+                sum += ++numRelevantRetrieved / (double)(i + 1);
+        }
+        return sum / numRelevant;
+    }
+
+    public static double precisionAt(String[] docNos, Map<String, Integer> judgments, int k) {
+        int numRelevantRetrieved = 0;
+        for(int i = 0; i < Math.min(k, docNos.length); ++i) {
+            if(isRelevant(judgments, docNos[i]))
+                ++numRelevantRetrieved;
+        }
+        return numRelevantRetrieved / (double)k;
+    }
+
+    /**
+     * Precision at rank R, the number of relevant docs.
+     */
+    public static double rPrecision(String[] docNos, Map<String, Integer> judgments) {
+        int numRelevant = numRelevant(judgments);
+        return numRelevant == 0 ? 0 : precisionAt(docNos, judgments, numRelevant);
+    }
+
+    /**
+     * Binary preference: how rarely judged non-relevant docs are ranked above relevant ones; unjudged docs are ignored.
+     */
+    public static double bpref(String[] docNos, Map<String, Integer> judgments) {
+        int numRelevant = numRelevant(judgments), numNonRelevant = numNonRelevant(judgments);
+        if(numRelevant == 0)
+            return 0;
+        double sum = 0;
+        int numNonRelevantAbove = 0;
+        for(String docNo: docNos) {
+            Integer relevance = judgments.get(docNo);
+            if(relevance == null)
+                continue;
+            if(relevance > 0)
+                sum += numNonRelevantAbove == 0 ? 1
+                        : 1 - Math.min(numNonRelevantAbove, numRelevant) / (double)Math.min(numRelevant, numNonRelevant);
+            else
+                ++numNonRelevantAbove;
+        }
+        return sum / numRelevant;
+    }
+}
@@ -0,0 +1,98 @@
+package emory.ir.search;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Feedback over the hits of a batch of queries: the union of their doc ids is read from the source once,
+ * in doc id order, and every query's model is built from the shared vectors.
+ * Docs retrieved by several queries are decoded once, and the index is read sequentially rather than per query.
+ * The union is read on first use, so a batch whose models all come from the result cache reads nothing;
+ * with a feedback pool it is read in contiguous doc id ranges on the pool.
+ * Thread-safe.
+ */
+public class FeedbackBatch implements FeedbackSource {
+
+    private final FeedbackSource source;
+    private final int[] docIds;  // Union of the hits, ascending
+    private volatile DocTermVector[] vectors = null;
+
+    /**
+     * @param topDocs : first-stage hits of each query in the batch
+     */
+    public FeedbackBatch(FeedbackSource source, TopDocs[] topDocs) {
+        this.source = source;
+        int numHits = 0;
+        for(TopDocs queryTopDocs: topDocs)
+            numHits += queryTopDocs.scoreDocs.length;
+        int[] docIds = new int[numHits];
+        numHits = 0;
+        for(TopDocs queryTopDocs: topDocs) {
+            for(ScoreDoc hit: queryTopDocs.scoreDocs)
+                docIds[numHits++] = hit.doc;
+        }
+        Arrays.sort(docIds);
+        int numDocs = 0;
+        for(int i = 0; i < docIds.length; ++i) {
+            if(numDocs == 0 || docIds[numDocs - 1] != docIds[i])
+                docIds[numDocs++] = docIds[i];
+        }
+        this.docIds = Arrays.copyOf(docIds, numDocs);
+    }
+
+    /**
+     * @return number of distinct docs in the batch
+     */
+    public int size() {
+        return docIds.length;
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return source.getCollectionModel();
+    }
+
+    /**
+     * Vectors are shared in memory; splitting a lookup across threads only adds overhead.
+     */
+    @Override
+    public boolean isSplittable() {
+        return false;
+    }
+
+    @Override
+    public boolean isExact() {
+        return source.isExact();
+    }
+
+    /**
+     * Docs outside the batch are read from the source.
+     */
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        DocTermVector[] batchVectors = load();
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        for(int i = 0; i < docIds.length; ++i) {
+            int idx = Arrays.binarySearch(this.docIds, docIds[i]);
+            vectors[i] = idx >= 0 ? batchVectors[idx] : source.getTermVectors(new int[]{docIds[i]})[0];
+        }
+        return vectors;
+    }
+
+    private DocTermVector[] load() throws IOException {
+        DocTermVector[] vectors = this.vectors;
+        if(vectors != null)
+            return vectors;
+        synchronized(this) {
+            if(this.vectors == null) {
+                long stageStart = Metrics.start();
+                this.vectors = LMDirichletProbability.readTermVectors(source, docIds);
+                Metrics.stop(Metrics.Stage.BATCH_READ, stageStart);
+            }
+            return this.vectors;
+        }
+    }
+}
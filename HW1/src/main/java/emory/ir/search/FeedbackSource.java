@@ -0,0 +1,72 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.IndexProfile;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+import java.io.IOException;
+
+/**
+ * Where RM feedback statistics of the hits come from: (term ordinal, freq) pairs and length of each document.
+ */
+public interface FeedbackSource {
+
+    enum Type {
+        TERM_VECTORS,  // Term vectors of TEXT, one random-access decode per doc
+        FORWARD_INDEX,  // Forward index in TEXT_TERMS binary doc values, read in doc id order
+        POSTINGS,  // Intersect the hit doc ids with the postings of every term; needs nothing beyond the inverted index
+        SUMMARIES  // Top terms of each doc in TEXT_SUMMARY binary doc values; approximate, never detected
+    }
+
+    CollectionModel getCollectionModel();
+
+    /**
+     * @param docIds : distinct doc ids, in any order
+     * @return term vector of each doc, in the order of docIds
+     */
+    DocTermVector[] getTermVectors(int[] docIds) throws IOException;
+
+    /**
+     * @return whether reading costs in proportion to the number of docs, so a batch can be split across threads
+     */
+    default boolean isSplittable() {
+        return true;
+    }
+
+    /**
+     * @return whether the docs are read in full, so models built from them can be cached with those of other sources
+     */
+    default boolean isExact() {
+        return true;
+    }
+
+    static FeedbackSource create(IndexReader reader, Type type) throws IOException {
+        switch(type) {
+            case TERM_VECTORS:
+                return new TermVectorFeedback(reader);
+            case FORWARD_INDEX:
+                return new ForwardIndexFeedback(reader);
+            case SUMMARIES:
+                return new SummaryFeedback(reader, SummaryFeedback.defaultNumTerms);
+            default:
+                return new PostingsFeedback(reader);
+        }
+    }
+
+    /**
+     * @return the cheapest source all segments of the reader support
+     */
+    static Type detect(IndexReader reader) {
+        if(IndexProfile.detect(reader).hasTermVectors())
+            return Type.TERM_VECTORS;
+        boolean forwardIndex = true;
+        for(LeafReaderContext leaf: reader.leaves()) {
+            FieldInfo textTerms = leaf.reader().getFieldInfos().fieldInfo(DocField.TEXT_TERMS);
+            forwardIndex &= textTerms != null && textTerms.getDocValuesType() == DocValuesType.BINARY;
+        }
+        return forwardIndex ? Type.FORWARD_INDEX : Type.POSTINGS;
+    }
+}
@@ -0,0 +1,71 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.ForwardIndex;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feedback from the {@link ForwardIndex} in the TEXT_TERMS binary doc values, read column-wise in doc id order.
+ * Thread-safe: doc values iterators are created per call.
+ */
+public class ForwardIndexFeedback implements FeedbackSource {
+
+    private final IndexReader reader;
+    private final CollectionModel collectionModel;
+
+    public ForwardIndexFeedback(IndexReader reader) throws IOException {
+        this.reader = reader;
+        this.collectionModel = CollectionModel.get(reader);
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        // Visit docs in doc id order: (docId, index) packed in a long
+        long[] order = new long[docIds.length];
+        for(int i = 0; i < docIds.length; ++i)
+            order[i] = ((long)docIds[i] << 32) | i;
+        Arrays.sort(order);
+
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        ForwardIndex.Decoder decoder = new ForwardIndex.Decoder();
+        List<LeafReaderContext> leaves = reader.leaves();
+        int leafIdx = -1, leafEnd = 0;
+        LeafReaderContext leaf = null;
+        BinaryDocValues values = null;
+        for(long entry: order) {
+            int docId = (int)(entry >>> 32), idx = (int)entry;
+            while(docId >= leafEnd) {
+                leaf = leaves.get(++leafIdx);
+                leafEnd = leaf.docBase + leaf.reader().maxDoc();
+                values = DocValues.getBinary(leaf.reader(), DocField.TEXT_TERMS);
+            }
+            if(!values.advanceExact(docId - leaf.docBase)) {
+                vectors[idx] = new DocTermVector(new int[0], new int[0], 0);
+                continue;
+            }
+            // Terms are in byte order, so ordinals come out ascending
+            decoder.reset(values.binaryValue());
+            int[] ords = new int[decoder.size()], freqs = new int[decoder.size()];
+            for(int i = 0; decoder.next(); ++i) {
+                ords[i] = collectionModel.getOrd(decoder.term());
+                if(ords[i] < 0)
+                    throw new IllegalStateException("Term of doc " + docId + " is not in the collection model: " + decoder.term().utf8ToString());
+                freqs[i] = decoder.freq();
+            }
+            vectors[idx] = new DocTermVector(ords, freqs, decoder.getDocLength());
+        }
+        return vectors;
+    }
+}
@@ -1,101 +1,353 @@
 package emory.ir.search;
 
-import emory.ir.index.DocField;
-import org.apache.lucene.index.*;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-public class LMDirichletProbability {
+/**
+ * Dirichlet smoothed term probabilities over the retrieved hits.
+ * Terms are mapped to dense per-query ids, in ascending order of their {@link CollectionModel} ordinal;
+ * all stats are kept in primitive arrays, with a CSR-style (termId -> hit index, freq) matrix for the term freqs.
+ * Hits are addressed by their position in the hits array, not by Lucene doc id.
+ * With a parallelism set, reading the hits and the marginals over the terms are split into fork/join tasks;
+ * each task writes its own slice of the arrays, so results are bit-identical to the serial build.
+ */
+public class LMDirichletProbability implements Accountable {
+
+    private static final int MIN_HITS_PER_TASK = 64;
+    private static final int MIN_TERMS_PER_TASK = 2048;
+    private static ForkJoinPool pool = null;  // Shared by all queries; null to build serially
 
     private double mu;
-    private Map<Integer, Integer> docLenMap = null;
-    private Map<String, Double> termGlobalProbMap = null;
-    private Map<String, HashMap<Integer, Double>> termProbMap = null;  // (term, docId) -> prob
+    private CollectionModel collectionModel = null;
+    private int[] termOrds = null;  // termId -> collection ordinal, ascending
+    private double[] termGlobalProbs = null;  // termId -> collection prob
+    private int[] docLens = null;  // hit index -> doc length
+    private int[] postingStarts = null;  // termId -> offset into postingHits/postingFreqs
+    private int[] postingHits = null;  // hit indices of each term, ascending
+    private int[] postingFreqs = null;
 
     private boolean debug = false;
-    private Double unseenTermProb = 2e-5;
+    private double unseenTermProb = 2e-5;
 
     public LMDirichletProbability(double mu) {this.mu = mu;}
 
+    /**
+     * Split the build of each query's model across threads; 1 to build serially.
+     */
+    public static void setParallelism(int parallelism) {
+        ForkJoinPool previous = pool;
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        if(previous != null)
+            previous.shutdown();
+    }
+
     public void initializeProb(IndexReader reader, ScoreDoc[] hits) throws Exception {
-        docLenMap = new HashMap<>();
-        termGlobalProbMap = new HashMap<>();
-        termProbMap = new HashMap<>();
-        long numAllTokensAcrossDocs = reader.getSumTotalTermFreq(DocField.TEXT);
+        initializeProb(TermVectorCache.get(reader), hits);
+    }
 
-        // Calculate term prob
+    public void initializeProb(FeedbackSource feedbackSource, ScoreDoc[] hits) throws Exception {
+        collectionModel = feedbackSource.getCollectionModel();
+        docLens = new int[hits.length];
+        int[] docIds = new int[hits.length];
+        for(int i = 0; i < hits.length; ++i)
+            docIds[i] = hits[i].doc;
+        DocTermVector[] vectors = readTermVectors(feedbackSource, docIds);
+        int[] entryStarts = new int[hits.length + 1];
         for(int i = 0; i < hits.length; ++i) {
-            Integer docId = hits[i].doc;
-            Terms termVec = reader.getTermVector(hits[i].doc, DocField.TEXT);
-            long docLen = termVec.getSumTotalTermFreq();
-            long numUniqueTokens = termVec.size();
-            docLenMap.put(docId, (int)docLen);
-
-            TermsEnum terms = termVec.iterator();
-            BytesRef term = null;
-            while((term = terms.next()) != null) {
-                String termText = term.utf8ToString();
-                termProbMap.putIfAbsent(termText, new HashMap<>());
-
-                // Get term global prob
-                double globalTermProb = termGlobalProbMap.getOrDefault(termText, -1D);
-                if(globalTermProb < 0) {
-                    globalTermProb = reader.totalTermFreq(new Term(DocField.TEXT, term)) / (double)numAllTokensAcrossDocs;
-                    termGlobalProbMap.put(termText, globalTermProb);
+            docLens[i] = vectors[i].length;
+            entryStarts[i + 1] = entryStarts[i] + vectors[i].size();
+        }
+        int numEntries = entryStarts[hits.length];
+        Metrics.count(Metrics.Counter.FEEDBACK_TERMS, numEntries);
+
+        // Sort (ord, hit) entries by ord, then hit; packed as ord << 32 | entry index in hit order
+        long[] entries = new long[numEntries];
+        int[] entryHits = new int[numEntries], entryFreqs = new int[numEntries];
+        forEachSlice(hits.length, MIN_HITS_PER_TASK, (from, to) -> {
+            for(int i = from; i < to; ++i) {
+                DocTermVector vector = vectors[i];
+                for(int j = 0, e = entryStarts[i]; j < vector.size(); ++j, ++e) {
+                    entries[e] = ((long)vector.ords[j] << 32) | e;
+                    entryHits[e] = i;
+                    entryFreqs[e] = vector.freqs[j];
                 }
+            }
+        });
+        if(pool == null)
+            Arrays.sort(entries);
+        else
+            pool.submit(() -> Arrays.parallelSort(entries)).join();  // Forks into the pool
+
+        // Group entries by term into the CSR matrix
+        int numTerms = 0;
+        termOrds = new int[Math.min(numEntries, collectionModel.size())];
+        postingStarts = new int[termOrds.length + 1];
+        postingHits = new int[numEntries];
+        postingFreqs = new int[numEntries];
+        for(int p = 0; p < numEntries; ++p) {
+            int ord = (int)(entries[p] >>> 32), entry = (int)entries[p];
+            if(numTerms == 0 || termOrds[numTerms - 1] != ord) {
+                termOrds[numTerms] = ord;
+                postingStarts[numTerms++] = p;
+            }
+            postingHits[p] = entryHits[entry];
+            postingFreqs[p] = entryFreqs[entry];
+        }
+        termOrds = ArrayUtil.copyOfSubArray(termOrds, 0, numTerms);
+        postingStarts = ArrayUtil.copyOfSubArray(postingStarts, 0, numTerms + 1);
+        postingStarts[numTerms] = numEntries;
+
+        // Get term global prob
+        termGlobalProbs = new double[numTerms];
+        for(int termId = 0; termId < numTerms; ++termId)
+            termGlobalProbs[termId] = collectionModel.getProb(termOrds[termId]);
 
-                // Get dirichlet smoothing prob
-                PostingsEnum posting = terms.postings(null, PostingsEnum.FREQS);
-                posting.nextDoc();
-                int termFreq = posting.freq();
-                double dirichletProb = (termFreq + mu * globalTermProb) / (docLen + mu);
-                termProbMap.get(termText).put(docId, dirichletProb);
-                if(debug)
+        if(debug) {
+            BytesRef scratch = new BytesRef();
+            for(int termId = 0; termId < numTerms; ++termId) {
+                for(int p = postingStarts[termId]; p < postingStarts[termId + 1]; ++p) {
+                    int hitIdx = postingHits[p];
                     System.out.println(String.format("term: %s, docLen: %d, termFreq: %d, globalTermProb: %e; dirichletProb: %e",
-                            termText, docLen, termFreq, globalTermProb, dirichletProb));
+                            getTerm(termId, scratch).utf8ToString(), docLens[hitIdx], postingFreqs[p], termGlobalProbs[termId],
+                            (postingFreqs[p] + mu * termGlobalProbs[termId]) / (docLens[hitIdx] + mu)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the statistics of the hits; independent of mu, k, n and lambda.
+     * Ordinals and hit indices are delta coded, since both ascend.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeVInt(termOrds.length);
+        for(int termId = 0; termId < termOrds.length; ++termId)
+            out.writeVInt(termId == 0 ? termOrds[0] : termOrds[termId] - termOrds[termId - 1]);
+        out.writeVInt(docLens.length);
+        for(int docLen: docLens)
+            out.writeVInt(docLen);
+        for(int termId = 0; termId < termOrds.length; ++termId) {
+            int start = postingStarts[termId], end = postingStarts[termId + 1];
+            out.writeVInt(end - start);
+            for(int p = start; p < end; ++p) {
+                out.writeVInt(p == start ? postingHits[p] : postingHits[p] - postingHits[p - 1]);
+                out.writeVInt(postingFreqs[p]);
             }
         }
     }
 
-    public double getTermProb(String termText, int docId) {
-        Map<Integer, Double> docMap = termProbMap.getOrDefault(termText, null);
-        if(docMap == null) {
+    /**
+     * Read statistics written by {@link #write} over the same index.
+     */
+    public static LMDirichletProbability read(DataInput in, CollectionModel collectionModel, double mu) throws IOException {
+        LMDirichletProbability model = new LMDirichletProbability(mu);
+        model.collectionModel = collectionModel;
+        int numTerms = in.readVInt();
+        model.termOrds = new int[numTerms];
+        model.termGlobalProbs = new double[numTerms];
+        for(int termId = 0; termId < numTerms; ++termId) {
+            model.termOrds[termId] = (termId == 0 ? 0 : model.termOrds[termId - 1]) + in.readVInt();
+            model.termGlobalProbs[termId] = collectionModel.getProb(model.termOrds[termId]);
+        }
+        model.docLens = new int[in.readVInt()];
+        int numEntries = 0;
+        for(int i = 0; i < model.docLens.length; ++i)
+            model.docLens[i] = in.readVInt();
+        model.postingStarts = new int[numTerms + 1];
+        int[] postingHits = new int[64], postingFreqs = new int[64];
+        for(int termId = 0; termId < numTerms; ++termId) {
+            int count = in.readVInt();
+            model.postingStarts[termId] = numEntries;
+            postingHits = ArrayUtil.grow(postingHits, numEntries + count);
+            postingFreqs = ArrayUtil.grow(postingFreqs, numEntries + count);
+            for(int i = 0; i < count; ++i, ++numEntries) {
+                postingHits[numEntries] = (i == 0 ? 0 : postingHits[numEntries - 1]) + in.readVInt();
+                postingFreqs[numEntries] = in.readVInt();
+            }
+        }
+        model.postingStarts[numTerms] = numEntries;
+        model.postingHits = ArrayUtil.copyOfSubArray(postingHits, 0, numEntries);
+        model.postingFreqs = ArrayUtil.copyOfSubArray(postingFreqs, 0, numEntries);
+        return model;
+    }
+
+    /**
+     * @return termId, or -1 if the term is not in any hit
+     */
+    public int getTermId(BytesRef term) {
+        int ord = collectionModel.getOrd(term);
+        if(ord < 0)
+            return -1;
+        int termId = Arrays.binarySearch(termOrds, ord);
+        return termId < 0 ? -1 : termId;
+    }
+
+    public int getTermId(String termText) {
+        return getTermId(new BytesRef(termText));
+    }
+
+    public BytesRef getTerm(int termId, BytesRef scratch) {
+        return collectionModel.getTerm(termOrds[termId], scratch);
+    }
+
+    public int getNumTerms() {
+        return termOrds.length;
+    }
+
+    /**
+     * Whether the term occurs in any of the top k hits.
+     */
+    public boolean isTermInTopDocs(int termId, int k) {
+        int start = postingStarts[termId];
+        return start < postingStarts[termId + 1] && postingHits[start] < k;
+    }
+
+    /**
+     * @param hitIdx : position of the document in the hits
+     */
+    public double getTermProb(int termId, int hitIdx) {
+        if(termId < 0) {
             // Unseen word w.r.t the whole collection
             return unseenTermProb;
+        }
+        double globalProb = termGlobalProbs[termId];
+        int p = findPosting(termId, hitIdx);
+        if(p < 0) {
+            // Unseen word w.r.t the current document
+            return (mu * globalProb) / (docLens[hitIdx] + mu);
         } else {
-            double prob = docMap.getOrDefault(docId, -1D);
-            if(prob < 0) {
-                // Unseen word w.r.t the current document
-                return (mu * termGlobalProbMap.get(termText)) / (docLenMap.get(docId) + mu);
-            } else {
-                return docMap.get(docId);
-            }
+            return (postingFreqs[p] + mu * globalProb) / (docLens[hitIdx] + mu);
         }
     }
 
+    /**
+     * Marginal prob of every term across the top k documents, or -1 for terms in none of them.
+     */
+    public double[] getTermProbSumsAcrossDocs(int k) {
+        double[] probSums = new double[termOrds.length];
+        forEachSlice(termOrds.length, MIN_TERMS_PER_TASK, (from, to) -> {
+            for(int termId = from; termId < to; ++termId)
+                probSums[termId] = isTermInTopDocs(termId, k) ? getTermProbSumAcrossDocs(termId, k) : -1;
+        });
+        return probSums;
+    }
+
     /**
      * Get marginal prob of the term across top k document.
      */
-    public double getTermProbSumAcrossDocs(String termText, ScoreDoc[] hits, int k) {
-        Map<Integer, Double> docMap = termProbMap.getOrDefault(termText, null);
-        if(docMap == null) {
-            return unseenTermProb * hits.length;
-        } else {
-            double probSum = 0;
-            double globalProb = termGlobalProbMap.get(termText);
-            for(int i = 0; i < k; ++i) {
-                Integer docId = hits[i].doc;
-                double prob = docMap.getOrDefault(docId, -1D);
-                if(prob < 0)
-                    probSum += (mu * globalProb) / (docLenMap.get(docId) + mu);
-                else
-                    probSum += prob;
+    public double getTermProbSumAcrossDocs(int termId, int k) {
+        if(termId < 0)
+            return unseenTermProb * docLens.length;
+
+        double probSum = 0;
+        double globalProb = termGlobalProbs[termId];
+        int p = postingStarts[termId], end = postingStarts[termId + 1];
+        for(int i = 0; i < k; ++i) {
+            if(p < end && postingHits[p] == i)
+                probSum += (postingFreqs[p++] + mu * globalProb) / (docLens[i] + mu);
+            else
+                probSum += (mu * globalProb) / (docLens[i] + mu);
+        }
+        return probSum;
+    }
+
+    private int findPosting(int termId, int hitIdx) {
+        int p = Arrays.binarySearch(postingHits, postingStarts[termId], postingStarts[termId + 1], hitIdx);
+        return p < 0 ? -1 : p;
+    }
+
+    /**
+     * Read the vectors in contiguous slices on the pool if the source can be split, so ascending doc ids are still
+     * read in order within each slice.
+     */
+    static DocTermVector[] readTermVectors(FeedbackSource source, int[] docIds) throws IOException {
+        if(pool == null || !source.isSplittable())
+            return source.getTermVectors(docIds);
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        forEachSlice(docIds.length, MIN_HITS_PER_TASK, (from, to) -> {
+            DocTermVector[] slice = source.getTermVectors(Arrays.copyOfRange(docIds, from, to));
+            System.arraycopy(slice, 0, vectors, from, slice.length);
+        });
+        return vectors;
+    }
+
+    interface SliceAction<E extends Exception> {
+        void run(int from, int to) throws E;
+    }
+
+    /**
+     * Run the action over [0, size) in slices of at least minSlice, on the pool if there is one.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> void forEachSlice(int size, int minSlice, SliceAction<E> action) throws E {
+        ForkJoinPool pool = LMDirichletProbability.pool;
+        if(pool == null || size < 2 * minSlice) {
+            action.run(0, size);
+            return;
+        }
+        // A few slices per thread balance uneven docs
+        int sliceSize = Math.max(minSlice, size / (4 * pool.getParallelism()));
+        try {
+            pool.invoke(new SliceTask(action, 0, size, sliceSize));
+        } catch (SliceException e) {
+            throw (E)e.getCause();
+        }
+    }
+
+    private static class SliceException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SliceException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static class SliceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SliceAction<?> action;
+        private final int from, to, sliceSize;
+
+        SliceTask(SliceAction<?> action, int from, int to, int sliceSize) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.sliceSize = sliceSize;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > sliceSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SliceTask(action, from, mid, sliceSize), new SliceTask(action, mid, to, sliceSize));
+                return;
+            }
+            try {
+                action.run(from, to);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SliceException(e);
             }
-            return probSum;
         }
     }
 
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(termOrds) + RamUsageEstimator.sizeOf(termGlobalProbs) + RamUsageEstimator.sizeOf(docLens)
+                + RamUsageEstimator.sizeOf(postingStarts) + RamUsageEstimator.sizeOf(postingHits)
+                + RamUsageEstimator.sizeOf(postingFreqs);
+    }
+
 }
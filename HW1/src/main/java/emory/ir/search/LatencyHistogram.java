@@ -0,0 +1,80 @@
+package emory.ir.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR-style histogram of non-negative long values (e.g. nanoseconds) with log-linear buckets:
+ * each power of two is split into 2^{@value #SUB_BUCKET_BITS} linear sub-buckets, so recorded values keep
+ * a relative precision of about 1%. Recording is lock-free and allocation-free, and safe from multiple threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value));
+    }
+
+    private static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double)n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile : in [0, 100]
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if(n == 0)
+            return 0;
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+}
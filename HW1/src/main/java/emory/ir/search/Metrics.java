@@ -0,0 +1,134 @@
+package emory.ir.search;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-stage latency histograms and resource counters of the search pipeline, shared by all query threads.
+ * Disabled by default, in which case every call is a no-op.
+ *
+ * Usage: {@code long start = Metrics.start(); ...; Metrics.stop(Stage.SEARCH, start);}
+ */
+public class Metrics {
+
+    public enum Stage {
+        PARSE,  // Query parsing
+        SEARCH,  // First-stage retrieval
+        BATCH_READ,  // Decoding the union of the feedback docs of a query batch
+        INIT_PROB,  // Building the feedback LM over the hits
+        EXPANSION,  // Selecting expansion terms
+        RESCORE,  // Re-scoring and sorting the hits
+        REQUERY,  // Searching again with the expanded query
+        DOCNO,  // Resolving docNo of the hits
+        QUERY  // Whole query, end to end
+    }
+
+    public enum Counter {
+        QUERIES,
+        TERM_VECTORS_READ,  // Term vectors decoded from the index
+        TERM_VECTOR_TERMS,  // Terms visited while decoding term vectors
+        FEEDBACK_TERMS,  // (term, doc) entries visited while building the feedback LM
+        EXPANSION_CANDIDATES,  // Terms scored as expansion candidates
+        BYTES_ALLOCATED  // Heap allocated by query threads
+    }
+
+    private static volatile boolean enabled = false;
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+    static {
+        for(int i = 0; i < histograms.length; ++i)
+            histograms[i] = new LatencyHistogram();
+        for(int i = 0; i < counters.length; ++i)
+            counters[i] = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Stage stage, long start) {
+        if(enabled)
+            histograms[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public static void count(Counter counter, long n) {
+        if(enabled)
+            counters[counter.ordinal()].add(n);
+    }
+
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public static long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or 0 if the JVM cannot tell
+     */
+    public static long getThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!enabled || !(bean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Write p50/p95/p99 of each stage and all counters; CSV if the file name ends with .csv, JSON otherwise.
+     */
+    public static void write(Path file) throws IOException {
+        boolean csv = file.getFileName().toString().endsWith(".csv");
+        try(BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write(csv ? toCsv() : toJson());
+        }
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\n  \"stages\": {");
+        String sep = "\n";
+        for(Stage stage: Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            sb.append(sep).append(String.format("    \"%s\": {\"count\": %d, \"mean_ms\": %.3f, \"p50_ms\": %.3f, \"p95_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f}",
+                    stage, histogram.getCount(), histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                    histogram.getPercentile(95) / 1e6, histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6));
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"counters\": {");
+        sep = "\n";
+        for(Counter counter: Counter.values()) {
+            sb.append(sep).append(String.format("    \"%s\": %d", counter, getCount(counter)));
+            sep = ",\n";
+        }
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    public static String toCsv() {
+        StringBuilder sb = new StringBuilder("type,name,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for(Stage stage: Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            sb.append(String.format("stage,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                    stage, histogram.getCount(), histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                    histogram.getPercentile(95) / 1e6, histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6));
+        }
+        for(Counter counter: Counter.values())
+            sb.append(String.format("counter,%s,%d,,,,,\n", counter, getCount(counter)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Feedback straight from the inverted index, doc-at-a-time: the postings of every term are intersected with
+ * the sorted doc ids, leapfrogging with {@link PostingsEnum#advance}. Needs neither term vectors nor a forward index,
+ * but visits the whole term dictionary once per call; doc length is the sum of the freqs.
+ */
+public class PostingsFeedback implements FeedbackSource {
+
+    private final IndexReader reader;
+    private final CollectionModel collectionModel;
+
+    public PostingsFeedback(IndexReader reader) throws IOException {
+        this.reader = reader;
+        this.collectionModel = CollectionModel.get(reader);
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    @Override
+    public boolean isSplittable() {
+        return false;  // Every call visits the whole dictionary
+    }
+
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        int n = docIds.length;
+        long[] order = new long[n];
+        for(int i = 0; i < n; ++i)
+            order[i] = ((long)docIds[i] << 32) | i;
+        Arrays.sort(order);
+        int[] sortedDocIds = new int[n];
+        for(int i = 0; i < n; ++i)
+            sortedDocIds[i] = (int)(order[i] >>> 32);
+
+        // Per doc in sorted order; terms come in byte order, so ordinals are appended ascending
+        int[][] ords = new int[n][], freqs = new int[n][];
+        int[] sizes = new int[n], lengths = new int[n];
+        Terms terms = MultiTerms.getTerms(reader, DocField.TEXT);
+        if(terms != null && n > 0) {
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            BytesRef term;
+            while((term = termsEnum.next()) != null) {
+                postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+                int ord = -1, h = 0;
+                int doc = postings.advance(sortedDocIds[0]);
+                while(doc != DocIdSetIterator.NO_MORE_DOCS) {
+                    if(sortedDocIds[h] < doc) {
+                        // Skip to the first doc at or after the posting
+                        h = Arrays.binarySearch(sortedDocIds, h + 1, n, doc);
+                        if(h < 0)
+                            h = -h - 1;
+                        if(h == n)
+                            break;
+                    }
+                    if(sortedDocIds[h] == doc) {
+                        if(ord < 0) {
+                            ord = collectionModel.getOrd(term);
+                            if(ord < 0)
+                                throw new IllegalStateException("Term is not in the collection model: " + term.utf8ToString());
+                        }
+                        int freq = postings.freq();
+                        if(ords[h] == null) {
+                            ords[h] = new int[64];
+                            freqs[h] = new int[64];
+                        } else if(sizes[h] == ords[h].length) {
+                            ords[h] = ArrayUtil.grow(ords[h]);
+                            freqs[h] = ArrayUtil.growExact(freqs[h], ords[h].length);
+                        }
+                        ords[h][sizes[h]] = ord;
+                        freqs[h][sizes[h]++] = freq;
+                        lengths[h] += freq;
+                        if(++h == n)
+                            break;
+                    }
+                    doc = postings.advance(sortedDocIds[h]);
+                }
+            }
+        }
+
+        DocTermVector[] vectors = new DocTermVector[n];
+        for(int i = 0; i < n; ++i) {
+            int size = sizes[i];
+            vectors[(int)order[i]] = size == 0 ? new DocTermVector(new int[0], new int[0], 0)
+                    : new DocTermVector(ArrayUtil.copyOfSubArray(ords[i], 0, size), ArrayUtil.copyOfSubArray(freqs[i], 0, size), lengths[i]);
+        }
+        return vectors;
+    }
+}
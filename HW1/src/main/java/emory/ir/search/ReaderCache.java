@@ -0,0 +1,43 @@
+package emory.ir.search;
+
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Values loaded once per reader and dropped when the reader is closed.
+ */
+class ReaderCache<T> {
+
+    interface Loader<T> {
+        T load(IndexReader reader) throws IOException;
+    }
+
+    private final Map<Object, T> values = new WeakHashMap<>();
+    private final Loader<T> loader;
+
+    ReaderCache(Loader<T> loader) {
+        this.loader = loader;
+    }
+
+    T get(IndexReader reader) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        Object key = cacheHelper == null ? reader : cacheHelper.getKey();
+        synchronized (values) {
+            T value = values.get(key);
+            if(value == null) {
+                value = loader.load(reader);
+                values.put(key, value);
+                if(cacheHelper != null)
+                    cacheHelper.addClosedListener(closedKey -> {
+                        synchronized (values) {
+                            values.remove(closedKey);
+                        }
+                    });
+            }
+            return value;
+        }
+    }
+}
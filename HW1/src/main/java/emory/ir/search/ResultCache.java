@@ -0,0 +1,271 @@
+package emory.ir.search;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of first-stage results and RM feedback statistics, shared by runs over the same index,
+ * so a parameter sweep only searches and reads feedback docs once per query.
+ *
+ * Entries are keyed by the exact segments of the reader, so any change to the index misses:
+ * - first-stage {@link TopDocs} by similarity, analyzed query and depth;
+ * - {@link LMDirichletProbability} statistics by the hit doc ids; these do not depend on mu, k, n or lambda.
+ * One checksummed file per entry, written to a temp file and renamed; a corrupt entry is a miss.
+ * The least recently used entries are evicted beyond the size limit.
+ * Thread-safe.
+ */
+public class ResultCache implements Closeable {
+
+    private static final String CODEC = "ResultCache";
+    private static final int VERSION = 0;
+    private static final String TOP_DOCS = "topdocs-", FEEDBACK = "feedback-", SUFFIX = ".bin";
+
+    private final FSDirectory dir;
+    private final long maxBytes;
+    private final LongAdder bytes = new LongAdder();  // Written since the last eviction
+    private volatile long lastBytes;  // Size found by the last eviction
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResultCache(Path path, long maxBytes) throws IOException {
+        this.dir = FSDirectory.open(path);
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return key of the reader's point-in-time view: id and generations of each segment; null if it has none
+     */
+    public static String getIndexKey(IndexReader reader) {
+        StringBuilder key = new StringBuilder();
+        for(LeafReaderContext leaf: reader.leaves()) {
+            LeafReader leafReader = FilterLeafReader.unwrap(leaf.reader());
+            if(!(leafReader instanceof SegmentReader))
+                return null;
+            SegmentCommitInfo info = ((SegmentReader)leafReader).getSegmentInfo();
+            key.append(StringHelper.idToString(info.info.getId())).append(':').append(info.getDelGen())
+                    .append(':').append(info.getDocValuesGen()).append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return key of a first-stage search; null if the reader has no key
+     */
+    public static String getSearchKey(IndexSearcher searcher, Query query, int numRetrievedDocs) {
+        String indexKey = getIndexKey(searcher.getIndexReader());
+        if(indexKey == null)
+            return null;
+        return indexKey + '\n' + searcher.getSimilarity() + '\n' + query + '\n' + numRetrievedDocs;
+    }
+
+    /**
+     * @return key of the feedback statistics of the hits; null if the reader has no key
+     */
+    public static String getFeedbackKey(IndexReader reader, ScoreDoc[] hits) {
+        String indexKey = getIndexKey(reader);
+        if(indexKey == null)
+            return null;
+        StringBuilder key = new StringBuilder(indexKey).append('\n');
+        for(ScoreDoc hit: hits)
+            key.append(hit.doc).append(' ');
+        return key.toString();
+    }
+
+    /**
+     * @return cached hits, or null
+     */
+    public TopDocs getTopDocs(String key) throws IOException {
+        try(ChecksumIndexInput in = open(TOP_DOCS, key)) {
+            if(in == null)
+                return null;
+            try {
+                TotalHits totalHits = new TotalHits(in.readVLong(), TotalHits.Relation.values()[in.readByte()]);
+                ScoreDoc[] scoreDocs = new ScoreDoc[in.readVInt()];
+                for(int i = 0; i < scoreDocs.length; ++i)
+                    scoreDocs[i] = new ScoreDoc(in.readVInt(), Float.intBitsToFloat(in.readInt()));
+                CodecUtil.checkFooter(in);
+                return new TopDocs(totalHits, scoreDocs);
+            } catch (IOException | RuntimeException e) {
+                return corrupt();
+            }
+        }
+    }
+
+    public void putTopDocs(String key, TopDocs topDocs) throws IOException {
+        write(TOP_DOCS, key, out -> {
+            out.writeVLong(topDocs.totalHits.value);
+            out.writeByte((byte)topDocs.totalHits.relation.ordinal());
+            out.writeVInt(topDocs.scoreDocs.length);
+            for(ScoreDoc scoreDoc: topDocs.scoreDocs) {
+                out.writeVInt(scoreDoc.doc);
+                out.writeInt(Float.floatToIntBits(scoreDoc.score));  // Exact
+            }
+        });
+    }
+
+    /**
+     * @return cached feedback statistics, or null
+     */
+    public LMDirichletProbability getFeedbackModel(String key, CollectionModel collectionModel, double mu) throws IOException {
+        try(ChecksumIndexInput in = open(FEEDBACK, key)) {
+            if(in == null)
+                return null;
+            try {
+                LMDirichletProbability model = LMDirichletProbability.read(in, collectionModel, mu);
+                CodecUtil.checkFooter(in);
+                return model;
+            } catch (IOException | RuntimeException e) {
+                return corrupt();
+            }
+        }
+    }
+
+    public void putFeedbackModel(String key, LMDirichletProbability model) throws IOException {
+        write(FEEDBACK, key, model::write);
+    }
+
+    private interface Writer {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private ChecksumIndexInput open(String kind, String key) throws IOException {
+        String name = getFileName(kind, key);
+        ChecksumIndexInput in;
+        try {
+            in = dir.openChecksumInput(name, IOContext.READONCE);
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return null;
+        }
+        try {
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+            Files.setLastModifiedTime(dir.getDirectory().resolve(name), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            in.close();
+            misses.increment();
+            return null;  // Evicted meanwhile, or written by another version
+        }
+        hits.increment();
+        return in;
+    }
+
+    /**
+     * Count a truncated or corrupt entry as a miss; it is replaced by the next put.
+     */
+    private <T> T corrupt() {
+        hits.decrement();
+        misses.increment();
+        return null;
+    }
+
+    private void write(String kind, String key, Writer writer) throws IOException {
+        String name = getFileName(kind, key);
+        String tmpName;
+        try(IndexOutput out = dir.createTempOutput(kind, "tmp", IOContext.DEFAULT)) {
+            tmpName = out.getName();
+            CodecUtil.writeHeader(out, CODEC, VERSION);
+            writer.write(out);
+            CodecUtil.writeFooter(out);
+        }
+        bytes.add(dir.fileLength(tmpName));
+        dir.rename(tmpName, name);  // Atomic; replaces an entry written concurrently for the same key
+        if(lastBytes + bytes.sum() > maxBytes)
+            evict();
+    }
+
+    /**
+     * Delete the least recently used entries, down to 3/4 of the limit, and leftover temp files.
+     */
+    private synchronized void evict() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> list = Files.list(dir.getDirectory())) {
+            list.forEach(files::add);
+        }
+        long total = 0;
+        List<Path> entries = new ArrayList<>();
+        for(Path file: files) {
+            String name = file.getFileName().toString();
+            if(name.endsWith(SUFFIX)) {
+                entries.add(file);
+                total += sizeOf(file);
+            } else if(name.endsWith(".tmp") && System.currentTimeMillis() - lastModified(file) > 60 * 60 * 1000) {
+                Files.deleteIfExists(file);  // Abandoned by a run that died
+            }
+        }
+        bytes.reset();
+        if(total > maxBytes) {
+            entries.sort(Comparator.comparingLong(ResultCache::lastModified));
+            for(Path file: entries) {
+                if(total <= maxBytes * 3 / 4)
+                    break;
+                total -= sizeOf(file);
+                Files.deleteIfExists(file);
+            }
+        }
+        lastBytes = total;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;  // Deleted meanwhile
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String getFileName(String kind, String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(kind);
+            for(byte b: digest)
+                name.append(String.format("%02x", b));
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long numHits = hits.sum(), numMisses = misses.sum();
+        return String.format("Result cache: %d hits, %d misses (%.1f%% hit rate), %d MB on disk",
+                numHits, numMisses, 100.0 * numHits / Math.max(numHits + numMisses, 1), (lastBytes + bytes.sum()) / (1024 * 1024));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(dir);
+    }
+}
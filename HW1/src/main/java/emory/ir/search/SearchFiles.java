@@ -9,23 +9,34 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import java.lang.Math;
+import java.lang.management.ManagementFactory;
+import emory.ir.LMLaplace;
+import emory.ir.index.DirectoryType;
 import emory.ir.index.DocField;
+import emory.ir.index.IndexProfile;
+import emory.ir.index.Shards;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMDirichletSimilarity;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.util.BytesRef;
 
 public class SearchFiles {
 
     private static boolean debug = false;
+    private static boolean verbose = true;  // Print per-query progress
 
     private static String field = DocField.TEXT;
     private static int numRetrievedDocs = 1000;
@@ -33,6 +44,40 @@ public class SearchFiles {
     private static int rmK = 35, rmN = 70;  // Params for RM
     private static double lambda = 0.75;  // Param for RM3
     private static double mu = 2000;  // Dirichlet
+    private static int numThreads = 1;  // Number of queries searched concurrently
+    private static long termVectorCacheMB = 256;  // Decoded term vectors shared across queries
+    private static Path metricsFile = null;  // Per-stage latency percentiles and counters, as JSON or CSV
+    private static boolean requery = false;  // RM: search again with the weighted expansion terms instead of re-ranking
+    private static Path qrelsFile = null;  // Relevance judgments to evaluate the run against
+    private static Path cacheDir = null;  // First-stage results and feedback statistics kept across runs
+    private static long cacheMB = 1024;
+    private static int batchSize = 0;  // RM: queries whose feedback docs are decoded together; 0 for one query at a time
+    private static DirectoryType directoryType = DirectoryType.AUTO;
+    private static Set<String> preloadExtensions = new HashSet<>();  // Memory mapped files read into the page cache on open
+    private static boolean warmup = false;  // Touch term dictionaries, norms and doc values before searching
+    private static Path warmupQueriesFile = null;  // Run before the real queries; neither written nor measured
+    private static int firstN = 10;  // Queries whose latency is reported apart, as the cold start
+    private static boolean sequentialBaseline = false;  // With threads, time a sequential pass too for the real speedup
+    private static ResultCache resultCache = null;
+
+    private static final Appendable DISCARD = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            return this;
+        }
+    };
+
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(Util.getStopWords()));
 
     private SearchFiles() {
     }
@@ -42,7 +87,9 @@ public class SearchFiles {
         String usage = "Usage: [Algorithm --> BM25, LMLaplace, RM1, RM3]\n" +
                        "       [Index Files --> Absolute Path to index folder]\n" +
                        "       [Queries --> Absolute Path to queries file]\n" +
-                       "       [Results --> Absolute Path to file where you want to have the results saved]";
+                       "       [Results --> Absolute Path to file where you want to have the results saved]\n" +
+                       "       [Options --> --threads N, --tv-cache-mb N, --feedback term-vectors|forward-index|postings|summaries, --summary-terms T, --feedback-threads N, --metrics FILE.json|FILE.csv, --requery, --qrels FILE, --cache DIR, --cache-mb N, --batch N,\n" +
+                       "                    --directory auto|mmap|nio, --preload EXT,EXT|all, --warmup, --warmup-queries FILE, --first-n N, --sequential-baseline]";
 
         if(args.length < 4){
             System.out.println(usage);
@@ -53,6 +100,7 @@ public class SearchFiles {
         String index = args[1];
         String queries = args[2];
         String result = args[3];
+        parseOptions(args, 4);
 
         assert algorithm.equalsIgnoreCase("BM25") || algorithm.equalsIgnoreCase("RM1")
                 || algorithm.equalsIgnoreCase("RM3") || algorithm.equalsIgnoreCase("LMLaplace");
@@ -62,38 +110,362 @@ public class SearchFiles {
         if(debug)
             System.out.printf("Total %d queries\n\n", queryList.size());
 
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
-        IndexSearcher searcher = new IndexSearcher(reader);
-        if(!algorithm.equalsIgnoreCase("BM25"))
-            searcher.setSimilarity(new LMDirichletSimilarity((float)mu));
-        Analyzer analyzer = new StandardAnalyzer(new CharArraySet(Arrays.asList(Util.getStopWords()), true));
-        QueryParser parser = new QueryParser(field, analyzer);
-
-        // Search for each query
-        StringBuilder sb = new StringBuilder();
+        TermVectorCache.setDefaults(termVectorCacheMB * 1024 * 1024, numThreads);
+        if(cacheDir != null)
+            resultCache = new ResultCache(cacheDir, cacheMB * 1024 * 1024);
+        long openStart = System.currentTimeMillis(), openStartNanos = System.nanoTime();
+        IndexReader reader = Shards.open(Paths.get(index), directoryType, preloadExtensions);
+        // Shards are searched at once, each of their segments on its own thread, and the hits merged exactly
+        int numShards = Shards.count(reader);
+        ExecutorService shardExecutor = numShards > 1 ? Executors.newFixedThreadPool(numShards) : null;
+        IndexSearcher searcher = new IndexSearcher(reader, shardExecutor);
+        searcher.setSimilarity(getSimilarity(algorithm, mu, reader));
+        QueryParser parser = new QueryParser(field, newAnalyzer());
+        long openMillis = System.currentTimeMillis() - openStart;
+
+        // Parse all queries up front; QueryParser is not thread-safe
+        Query[] parsedQueries = new Query[queryList.size()];
         for(int i = 0; i < queryList.size(); ++i) {
-            Query query = parser.parse(QueryParser.escape(queryList.get(i).getText()));
-            System.out.println("Searching for: " + query.toString(field));
+            long parseStart = Metrics.start();
+            parsedQueries[i] = parser.parse(QueryParser.escape(queryList.get(i).getText()));
+            Metrics.stop(Metrics.Stage.PARSE, parseStart);
+        }
 
-            TopDocs topDocs = doSearch(searcher, query, numRetrievedDocs);  // BM25
-            if(algorithm.equalsIgnoreCase("RM1"))
-                topDocs.scoreDocs = reRank(reader, query, topDocs, rmK, rmN);  // RM1
-            else if(algorithm.equalsIgnoreCase("RM3"))
-                topDocs.scoreDocs = reRank(reader, query, topDocs, rmK, rmN, lambda);  // RM3
-//             String newQueryStr = reRank(reader, query, topDocs, rmK , rmN, lambda);
-//             Query newQuery = parser.parse(QueryParser.escape(newQueryStr));
-//             topDocs = doSearch(searcher, newQuery, numRetrievedDocs);  // Re-search for debug
-            printTopDocs(sb, searcher, topDocs, queryList.get(i).getNum(), userId);
+        // Search for each query; results are written as soon as each query finishes
+        if(numShards > 1)
+            System.out.printf("Searching %d shards, %d docs\n", numShards, reader.numDocs());
+        if(isRM(algorithm))
+            System.out.printf("Index profile %s, RM feedback from %s\n", IndexProfile.detect(reader),
+                    TermVectorCache.get(reader).getSource().getClass().getSimpleName());
+        System.out.printf("Heap used before searching: %d MB\n", Util.getUsedHeapMB());
+        DocNoResolver docNoResolver = new DocNoResolver(reader);
+        long warmupMillis = warmUp(reader, searcher, docNoResolver, algorithm, parser);
+        long[] queryCpuNanos = new long[queryList.size()], queryLatencyNanos = new long[queryList.size()];
+        Map<Integer, Map<String, Integer>> qrels = qrelsFile == null ? null : Evaluation.readQrels(qrelsFile);
+        double[] averagePrecisions = new double[queryList.size()], precisionsAt10 = new double[queryList.size()];
+        FeedbackSource rmSource = isRM(algorithm) ? TermVectorCache.get(reader) : null;
+        AtomicLong firstAnswerNanos = new AtomicLong(Long.MIN_VALUE);
+        long wallMillis;
+        try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(result))) {
+            wallMillis = searchAll(writer, numThreads, reader, searcher, docNoResolver, algorithm, parsedQueries, queryList,
+                    rmSource, queryCpuNanos, queryLatencyNanos, qrels, averagePrecisions, precisionsAt10, firstAnswerNanos);
         }
+        if(sequentialBaseline && numThreads > 1) {
+            long sequentialMillis = searchSequentialBaseline(reader, searcher, docNoResolver, algorithm, parsedQueries, queryList);
+            System.out.printf("Searched %d queries in %d ms with %d threads; sequential pass %d ms, speedup %.2fx\n",
+                    queryList.size(), wallMillis, numThreads, sequentialMillis, sequentialMillis / (double)Math.max(wallMillis, 1));
+        } else {
+            // Per-thread CPU time leaves out I/O waits and grows with contention between threads, so this only estimates
+            // the speedup; --sequential-baseline measures it
+            long cpuMillis = Arrays.stream(queryCpuNanos).sum() / 1000000;
+            System.out.printf("Searched %d queries in %d ms with %d thread(s); sum of per-query CPU time %d ms, estimated speedup %.2fx\n",
+                    queryList.size(), wallMillis, numThreads, cpuMillis, cpuMillis / (double)Math.max(wallMillis, 1));
+        }
+        System.out.printf("Heap used after searching: %d MB\n", Util.getUsedHeapMB());
+        printColdStart(openMillis, warmupMillis, firstAnswerNanos.get() - openStartNanos, queryLatencyNanos);
+        if(qrels != null) {
+            // Topics without judgments are left out, as in trec_eval
+            int numJudged = 0;
+            double map = 0, p10 = 0;
+            for(int i = 0; i < queryList.size(); ++i) {
+                if(!qrels.containsKey(queryList.get(i).getNum()))
+                    continue;
+                ++numJudged;
+                map += averagePrecisions[i];
+                p10 += precisionsAt10[i];
+            }
+            System.out.printf("MAP %.4f, P@10 %.4f over %d judged queries\n",
+                    map / Math.max(numJudged, 1), p10 / Math.max(numJudged, 1), numJudged);
+        }
+        if(isRM(algorithm))
+            System.out.println(TermVectorCache.get(reader));
+        if(resultCache != null) {
+            System.out.println(resultCache);
+            resultCache.close();
+            resultCache = null;
+        }
+        if(metricsFile != null) {
+            Metrics.write(metricsFile);
+            System.out.println("Metrics written to " + metricsFile);
+        }
+        if(shardExecutor != null)
+            shardExecutor.shutdown();
         reader.close();
-
-        // Save results
-        BufferedWriter writer = Files.newBufferedWriter(Paths.get(result));
-        writer.write(sb.toString());
-        writer.close();
         System.out.println("Done");
     }
 
+    /**
+     * Search all queries, threads at a time, and write their results to out in topic order.
+     * @param rmSource : where RM reads the feedback docs from; null for other algorithms
+     * @param firstAnswerNanos : set to the time the first query is answered
+     * @return wall milliseconds taken
+     */
+    private static long searchAll(Appendable out, int threads, IndexReader reader, IndexSearcher searcher, DocNoResolver docNoResolver,
+                                  String algorithm, Query[] parsedQueries, List<QueryField> queryList, FeedbackSource rmSource,
+                                  long[] queryCpuNanos, long[] queryLatencyNanos, Map<Integer, Map<String, Integer>> qrels,
+                                  double[] averagePrecisions, double[] precisionsAt10, AtomicLong firstAnswerNanos) throws Exception {
+        long start = System.currentTimeMillis();
+        // Results are written in topic order regardless of completion order;
+        // at most 2 * threads queries are in flight to keep pending results bounded
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            Deque<Future<StringBuilder>> futures = new ArrayDeque<>();
+            boolean batched = batchSize > 0 && rmSource != null;
+            int batch = batched ? batchSize : Math.max(queryList.size(), 1);
+            for(int from = 0; from < queryList.size(); from += batch) {
+                int to = Math.min(from + batch, queryList.size());
+                // Batch: search all queries first, then decode the union of their hits once for all feedback models
+                TopDocs[] firstStage = batched ? searchBatch(executor, searcher, parsedQueries, from, to) : null;
+                FeedbackSource feedbackSource = batched ? new FeedbackBatch(rmSource, firstStage) : rmSource;
+                for(int i = from; i < to; ++i) {
+                    final int queryIdx = i;
+                    TopDocs topDocs = batched ? firstStage[i - from] : null;
+                    if(executor == null) {
+                        searchQuery(out, reader, searcher, docNoResolver, algorithm, parsedQueries[queryIdx],
+                                queryList.get(queryIdx).getNum(), topDocs, feedbackSource, queryCpuNanos, queryLatencyNanos,
+                                qrels, averagePrecisions, precisionsAt10, queryIdx);
+                        firstAnswerNanos.compareAndSet(Long.MIN_VALUE, System.nanoTime());
+                        continue;
+                    }
+                    futures.add(executor.submit(() -> {
+                        StringBuilder results = searchQuery(new StringBuilder(), reader, searcher, docNoResolver, algorithm,
+                                parsedQueries[queryIdx], queryList.get(queryIdx).getNum(), topDocs, feedbackSource, queryCpuNanos,
+                                queryLatencyNanos, qrels, averagePrecisions, precisionsAt10, queryIdx);
+                        firstAnswerNanos.compareAndSet(Long.MIN_VALUE, System.nanoTime());
+                        return results;
+                    }));
+                    if(futures.size() >= 2 * threads)
+                        out.append(futures.poll().get());
+                }
+            }
+            while(!futures.isEmpty())
+                out.append(futures.poll().get());
+        } finally {
+            if(executor != null)
+                executor.shutdown();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Search all queries again on one thread, for the wall-clock speedup of the threaded pass; results and metrics
+     * are dropped. RM reads through a term vector cache of its own and the result cache is off, so the pass reuses
+     * nothing the threaded one decoded; the JIT and page cache are warm for it, so the speedup errs low.
+     * @return wall milliseconds taken
+     */
+    private static long searchSequentialBaseline(IndexReader reader, IndexSearcher searcher, DocNoResolver docNoResolver,
+                                                 String algorithm, Query[] parsedQueries, List<QueryField> queryList) throws Exception {
+        int numQueries = queryList.size();
+        FeedbackSource rmSource = isRM(algorithm)
+                ? new TermVectorCache(TermVectorCache.get(reader).getSource(), termVectorCacheMB * 1024 * 1024, 1) : null;
+        ResultCache cache = resultCache;
+        boolean metricsEnabled = Metrics.isEnabled();
+        resultCache = null;
+        Metrics.setEnabled(false);
+        try {
+            return searchAll(DISCARD, 1, reader, searcher, docNoResolver, algorithm, parsedQueries, queryList, rmSource,
+                    new long[numQueries], new long[numQueries], null, new double[numQueries], new double[numQueries],
+                    new AtomicLong(Long.MIN_VALUE));
+        } finally {
+            resultCache = cache;
+            Metrics.setEnabled(metricsEnabled);
+        }
+    }
+
+    /**
+     * First-stage search of the queries [from, to), on the executor if there is one.
+     */
+    private static TopDocs[] searchBatch(ExecutorService executor, IndexSearcher searcher, Query[] queries, int from, int to)
+            throws Exception {
+        TopDocs[] topDocs = new TopDocs[to - from];
+        List<Future<TopDocs>> futures = new ArrayList<>();
+        for(int i = from; i < to; ++i) {
+            Query query = queries[i];
+            Callable<TopDocs> search = () -> {
+                long searchStart = Metrics.start();
+                TopDocs queryTopDocs = doSearch(searcher, query, numRetrievedDocs);
+                Metrics.stop(Metrics.Stage.SEARCH, searchStart);
+                return queryTopDocs;
+            };
+            if(executor == null)
+                topDocs[i - from] = search.call();
+            else
+                futures.add(executor.submit(search));
+        }
+        for(int i = 0; i < futures.size(); ++i)
+            topDocs[i] = futures.get(i).get();
+        return topDocs;
+    }
+
+    /**
+     * Search a single query and write its results to out; safe to call from multiple threads.
+     * @param topDocs : first-stage hits already searched, or null to search them
+     * @param feedbackSource : where RM reads the feedback docs from
+     */
+    private static <T extends Appendable> T searchQuery(T out, IndexReader reader, IndexSearcher searcher, DocNoResolver docNoResolver,
+                                                        String algorithm, Query query, int queryId, TopDocs topDocs,
+                                                        FeedbackSource feedbackSource, long[] queryCpuNanos, long[] queryLatencyNanos,
+                                                        Map<Integer, Map<String, Integer>> qrels, double[] averagePrecisions,
+                                                        double[] precisionsAt10, int queryIdx) throws Exception {
+        long start = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime(), wallStart = System.nanoTime();
+        long metricsStart = Metrics.start(), allocatedBytes = Metrics.getThreadAllocatedBytes();
+        if(verbose)
+            System.out.println("Searching for: " + query.toString(field));
+
+        if(topDocs == null) {
+            long searchStart = Metrics.start();
+            topDocs = doSearch(searcher, query, numRetrievedDocs);  // BM25
+            Metrics.stop(Metrics.Stage.SEARCH, searchStart);
+        }
+        if(isRM(algorithm)) {
+            double rmLambda = algorithm.equalsIgnoreCase("RM3") ? lambda : -1;
+            LMDirichletProbability lmDirichletProbability = getFeedbackModel(reader, feedbackSource, topDocs, mu);
+            if(requery)
+                topDocs = reQuery(lmDirichletProbability, searcher, query, rmK, rmN, rmLambda, numRetrievedDocs);
+            else
+                topDocs.scoreDocs = reRank(lmDirichletProbability, query, topDocs, rmK, rmN, rmLambda);
+        }
+        String[] docNos = printTopDocs(out, docNoResolver, topDocs, queryId, userId);
+        if(qrels != null && qrels.containsKey(queryId)) {
+            averagePrecisions[queryIdx] = Evaluation.averagePrecision(docNos, qrels.get(queryId));
+            precisionsAt10[queryIdx] = Evaluation.precisionAt(docNos, qrels.get(queryId), 10);
+        }
+        queryCpuNanos[queryIdx] = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - start;
+        queryLatencyNanos[queryIdx] = System.nanoTime() - wallStart;
+        Metrics.stop(Metrics.Stage.QUERY, metricsStart);
+        Metrics.count(Metrics.Counter.QUERIES, 1);
+        Metrics.count(Metrics.Counter.BYTES_ALLOCATED, Metrics.getThreadAllocatedBytes() - allocatedBytes);
+        return out;
+    }
+
+    /**
+     * Warm the reader up before the real queries: touch its structures, then run the warm-up queries
+     * through the same path as the real ones, with metrics and the result cache off and the results dropped.
+     * @return milliseconds taken
+     */
+    private static long warmUp(IndexReader reader, IndexSearcher searcher, DocNoResolver docNoResolver, String algorithm,
+                               QueryParser parser) throws Exception {
+        long start = System.currentTimeMillis();
+        if(warmup)
+            System.out.printf("Warm-up touched %s in %d ms\n", Warmup.touch(reader), System.currentTimeMillis() - start);
+        if(warmupQueriesFile != null) {
+            long queriesStart = System.currentTimeMillis();
+            ArrayList<QueryField> warmupQueries = parseQueries(warmupQueriesFile);
+            // The result cache is off, so queries shared with the real ones are not answered from it afterwards
+            ResultCache cache = resultCache;
+            boolean metricsEnabled = Metrics.isEnabled();
+            resultCache = null;
+            Metrics.setEnabled(false);
+            try {
+                for(QueryField warmupQuery: warmupQueries) {
+                    Query query = parser.parse(QueryParser.escape(warmupQuery.getText()));
+                    searchQuery(new StringBuilder(), reader, searcher, docNoResolver, algorithm, query, warmupQuery.getNum(), null,
+                            isRM(algorithm) ? TermVectorCache.get(reader) : null, new long[1], new long[1], null,
+                            new double[1], new double[1], 0);
+                }
+            } finally {
+                resultCache = cache;
+                Metrics.setEnabled(metricsEnabled);
+            }
+            System.out.printf("Warm-up ran %d queries in %d ms\n", warmupQueries.size(), System.currentTimeMillis() - queriesStart);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Report cold-start latency: time from the start of the open until the first query is answered, whichever it is,
+     * and latency of the first queries against the rest.
+     */
+    private static void printColdStart(long openMillis, long warmupMillis, long firstAnswerNanos, long[] queryLatencyNanos) {
+        if(queryLatencyNanos.length == 0)
+            return;
+        System.out.printf("Opened index in %d ms (%s%s), warm-up %d ms; time to first query %.1f ms\n", openMillis, directoryType,
+                preloadExtensions.isEmpty() ? "" : ", preload " + String.join(",", preloadExtensions), warmupMillis,
+                firstAnswerNanos / 1e6);
+        int numFirst = Math.min(firstN, queryLatencyNanos.length);
+        System.out.printf("Latency of the first %d queries: %s; of the other %d: %s\n",
+                numFirst, formatLatency(queryLatencyNanos, 0, numFirst),
+                queryLatencyNanos.length - numFirst, formatLatency(queryLatencyNanos, numFirst, queryLatencyNanos.length));
+    }
+
+    private static String formatLatency(long[] latencyNanos, int from, int to) {
+        if(from >= to)
+            return "-";
+        long sum = 0, max = 0;
+        for(int i = from; i < to; ++i) {
+            sum += latencyNanos[i];
+            max = Math.max(max, latencyNanos[i]);
+        }
+        return String.format("mean %.1f ms, max %.1f ms", sum / 1e6 / (to - from), max / 1e6);
+    }
+
+    private static boolean isRM(String algorithm) {
+        return algorithm.equalsIgnoreCase("RM1") || algorithm.equalsIgnoreCase("RM3");
+    }
+
+    public static void setVerbose(boolean verbose) {
+        SearchFiles.verbose = verbose;
+    }
+
+    public static Analyzer newAnalyzer() {
+        return new StandardAnalyzer(new CharArraySet(Arrays.asList(Util.getStopWords()), true));
+    }
+
+    /**
+     * Similarity of the first-stage search: BM25, Laplace LM over the vocabulary of TEXT in the reader,
+     * or Dirichlet LM for RM1/RM3
+     */
+    public static Similarity getSimilarity(String algorithm, double mu, IndexReader reader) throws IOException {
+        if(algorithm.equalsIgnoreCase("BM25"))
+            return new BM25Similarity();
+        if(algorithm.equalsIgnoreCase("LMLaplace"))
+            return new LMLaplace(CollectionModel.get(reader).size());  // Loaded once per reader
+        return new LMDirichletSimilarity((float)mu);
+    }
+
+    private static void parseOptions(String[] args, int offset) {
+        for(int i = offset; i < args.length; ++i) {
+            if(args[i].equals("--threads") && i + 1 < args.length)
+                numThreads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--tv-cache-mb") && i + 1 < args.length)
+                termVectorCacheMB = Long.parseLong(args[++i]);
+            else if(args[i].equals("--feedback-threads") && i + 1 < args.length)
+                LMDirichletProbability.setParallelism(Integer.parseInt(args[++i]));
+            else if(args[i].equals("--feedback") && i + 1 < args.length)
+                TermVectorCache.setDefaultSourceType(FeedbackSource.Type.valueOf(args[++i].toUpperCase().replace('-', '_')));
+            else if(args[i].equals("--summary-terms") && i + 1 < args.length)
+                SummaryFeedback.setDefaultNumTerms(Integer.parseInt(args[++i]));
+            else if(args[i].equals("--requery"))
+                requery = true;
+            else if(args[i].equals("--qrels") && i + 1 < args.length)
+                qrelsFile = Paths.get(args[++i]);
+            else if(args[i].equals("--cache") && i + 1 < args.length)
+                cacheDir = Paths.get(args[++i]);
+            else if(args[i].equals("--cache-mb") && i + 1 < args.length)
+                cacheMB = Long.parseLong(args[++i]);
+            else if(args[i].equals("--batch") && i + 1 < args.length)
+                batchSize = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--directory") && i + 1 < args.length)
+                directoryType = DirectoryType.valueOf(args[++i].toUpperCase());
+            else if(args[i].equals("--preload") && i + 1 < args.length)
+                preloadExtensions = new LinkedHashSet<>(Arrays.asList(args[++i].toLowerCase().split(",")));
+            else if(args[i].equals("--warmup"))
+                warmup = true;
+            else if(args[i].equals("--warmup-queries") && i + 1 < args.length)
+                warmupQueriesFile = Paths.get(args[++i]);
+            else if(args[i].equals("--first-n") && i + 1 < args.length)
+                firstN = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--sequential-baseline"))
+                sequentialBaseline = true;
+            else if(args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = Paths.get(args[++i]);
+                Metrics.setEnabled(true);
+            }
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+    }
+
     /**
      * RM1
      * @param k : use top k documents for expansion
@@ -109,132 +481,249 @@ public class SearchFiles {
      * @param lambda: > 0 for RM3 interpolation
      */
     public static ScoreDoc[] reRank(IndexReader reader, Query query, TopDocs topDocs, int k, int n, double lambda) throws Exception{
+        return reRank(reader, query, topDocs, k, n, lambda, mu);
+    }
+
+    /**
+     * @param mu : Dirichlet smoothing of the feedback LM
+     */
+    public static ScoreDoc[] reRank(IndexReader reader, Query query, TopDocs topDocs, int k, int n, double lambda,
+                                    double mu) throws Exception{
+        assert k <= topDocs.scoreDocs.length;
+        return reRank(getFeedbackModel(reader, topDocs, mu), query, topDocs, k, n, lambda);
+    }
+
+    /**
+     * Re-rank with a feedback model already built over the hits; the model is only read, so it can be shared.
+     */
+    public static ScoreDoc[] reRank(LMDirichletProbability lmDirichletProbability, Query query, TopDocs topDocs,
+                                    int k, int n, double lambda) {
+        String[] queryTerms = getQueryTerms(query);
+        int[] queryTermIds = getTermIds(queryTerms, lmDirichletProbability);
+        long stageStart = Metrics.start();
+
+        // Expand query
+        String[] expansionTerms = new String[n];
+        int numExpansionTerms = getExpansionTerms(lmDirichletProbability, queryTerms, queryTermIds, k, n, lambda,
+                expansionTerms, new double[n]);
+        Set<String> queryTermsSet = new HashSet<>(Arrays.asList(queryTerms));
+        int numQueryTerms = queryTerms.length;
+        for(int i = 0; i < numExpansionTerms; ++i) {
+            if(!queryTermsSet.contains(expansionTerms[i]))
+                ++numQueryTerms;
+        }
+        if(verbose) {
+            String[] newQueryTerms = Stream.concat(
+                    Arrays.stream(queryTerms),
+                    Arrays.stream(expansionTerms, 0, numExpansionTerms).filter(term -> !queryTermsSet.contains(term)))
+                    .toArray(String[]::new);
+            System.out.println("New query: " + Arrays.toString(newQueryTerms));
+        }
+        Metrics.stop(Metrics.Stage.EXPANSION, stageStart);
+        stageStart = Metrics.start();
+
+        // Recalculate log p(q|D) of all hits; summing logs does not underflow on long queries
         ScoreDoc[] hits = topDocs.scoreDocs;
-        assert k <= hits.length;
-        String queryText = query.toString();
+        TopScores ranking = new TopScores(hits.length);
+        for(int i = 0; i < hits.length; ++i) {
+            double logQueryProb = 0;
+            for(int queryTermId: queryTermIds)
+                logQueryProb += Math.log(lmDirichletProbability.getTermProb(queryTermId, i));
+            ranking.offer(hits[i].doc, logQueryProb);
+        }
+
+        // Sort docs by new queryProb, normalized to the geometric mean over the expanded query
+        int[] docIds = new int[hits.length];
+        double[] logQueryProbs = new double[hits.length];
+        int numRankedDocs = ranking.drainDescending(docIds, logQueryProbs);
+        ScoreDoc[] rankedDocs = new ScoreDoc[numRankedDocs];
+        for(int i = 0; i < numRankedDocs; ++i)
+            rankedDocs[i] = new ScoreDoc(docIds[i], (float)Math.exp(logQueryProbs[i] / numQueryTerms));
+        Metrics.stop(Metrics.Stage.RESCORE, stageStart);
+        return rankedDocs;
+    }
+
+    /**
+     * Re-query: search the whole index again with the expansion terms, each boosted by its normalized RM1/RM3 weight.
+     * Scoring stops counting hits beyond numRetrievedDocs, so block-max WAND can skip blocks that cannot make the top.
+     */
+    public static TopDocs reQuery(IndexSearcher searcher, Query query, TopDocs topDocs, int k, int n, double lambda,
+                                  double mu, int numRetrievedDocs) throws Exception {
+        assert k <= topDocs.scoreDocs.length;
+        return reQuery(getFeedbackModel(searcher.getIndexReader(), topDocs, mu), searcher, query, k, n, lambda, numRetrievedDocs);
+    }
+
+    /**
+     * Re-query with a feedback model already built over the hits.
+     */
+    public static TopDocs reQuery(LMDirichletProbability lmDirichletProbability, IndexSearcher searcher, Query query,
+                                  int k, int n, double lambda, int numRetrievedDocs) throws Exception {
+        String[] queryTerms = getQueryTerms(query);
+        long stageStart = Metrics.start();
+        String[] expansionTerms = new String[n];
+        double[] weights = new double[n];
+        int numExpansionTerms = getExpansionTerms(lmDirichletProbability, queryTerms, getTermIds(queryTerms, lmDirichletProbability),
+                k, n, lambda, expansionTerms, weights);
+        double sum = 0;
+        for(int i = 0; i < numExpansionTerms; ++i)
+            sum += weights[i];
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for(int i = 0; i < numExpansionTerms; ++i) {
+            Query termQuery = new TermQuery(new Term(field, expansionTerms[i]));
+            builder.add(new BoostQuery(termQuery, (float)(weights[i] / sum)), BooleanClause.Occur.SHOULD);
+        }
+        Query newQuery = builder.build();
+        if(verbose)
+            System.out.println("New query: " + newQuery.toString(field));
+        Metrics.stop(Metrics.Stage.EXPANSION, stageStart);
+
+        stageStart = Metrics.start();
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numRetrievedDocs, numRetrievedDocs);
+        searcher.search(newQuery, collector);
+        TopDocs newTopDocs = collector.topDocs();
+        Metrics.stop(Metrics.Stage.REQUERY, stageStart);
+        return newTopDocs;
+    }
 
-        // Build up lmDirichletProbability
-        LMDirichletProbability lmDirichletProbability = new LMDirichletProbability(mu);
-        lmDirichletProbability.initializeProb(reader, hits);
+    /**
+     * Feedback LM over the first-stage hits
+     */
+    static LMDirichletProbability getFeedbackModel(IndexReader reader, TopDocs topDocs, double mu) throws Exception {
+        return getFeedbackModel(reader, TermVectorCache.get(reader), topDocs, mu);
+    }
+
+    /**
+     * Feedback LM over the first-stage hits, read from the given source
+     */
+    static LMDirichletProbability getFeedbackModel(IndexReader reader, FeedbackSource feedbackSource, TopDocs topDocs,
+                                                   double mu) throws Exception {
+        long stageStart = Metrics.start();
+        String key = resultCache == null || !feedbackSource.isExact() ? null : ResultCache.getFeedbackKey(reader, topDocs.scoreDocs);
+        LMDirichletProbability lmDirichletProbability = key == null ? null
+                : resultCache.getFeedbackModel(key, CollectionModel.get(reader), mu);
+        if(lmDirichletProbability == null) {
+            lmDirichletProbability = new LMDirichletProbability(mu);
+            lmDirichletProbability.initializeProb(feedbackSource, topDocs.scoreDocs);
+            if(key != null)
+                resultCache.putFeedbackModel(key, lmDirichletProbability);
+        }
+        if(debug)
+            System.out.printf("LMDirichletProbability: %d KB\n", lmDirichletProbability.ramBytesUsed() / 1024);
+        Metrics.stop(Metrics.Stage.INIT_PROB, stageStart);
+        return lmDirichletProbability;
+    }
 
-        // Calculate p(q|D)
-        String[] queryTerms = queryText.split("\\s+");
+    private static String[] getQueryTerms(Query query) {
+        String[] queryTerms = query.toString().split("\\s+");
         for(int i = 0; i < queryTerms.length; ++i)
             queryTerms[i] = queryTerms[i].split(":")[1];
-        Map<Integer, Double> queryProbMap = getQueryProbMap(queryTerms, lmDirichletProbability, k, topDocs);
-
-        // Collect all terms in top docs
-        Set<String> termsInTopDocs = new TreeSet<>();
-        for(int i = 0; i < k; ++i) {
-            Integer docId = hits[i].doc;
-            Terms termVec = reader.getTermVector(hits[i].doc, DocField.TEXT);
-            TermsEnum terms = termVec.iterator();
-            BytesRef term = null;
-            while((term = terms.next()) != null) {
-                String termText = term.utf8ToString();
-                termsInTopDocs.add(termText);
-            }
-        }
+        return queryTerms;
+    }
 
-        // Get term prob across documents using reweighted term prob
-        Map<String, Double> termProbAcrossDocMap = new HashMap<>();
-        termsInTopDocs.forEach(termText -> {
-            try {
-                double termProbAcrossDoc = lmDirichletProbability.getTermProbSumAcrossDocs(termText, hits, k);
-                termProbAcrossDocMap.put(termText, termProbAcrossDoc);
-                if(debug)
-                    System.out.println(String.format("term: %s, termProbAcrossDoc: %e", termText, termProbAcrossDoc));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+    /**
+     * Select the top n non-stopword terms by RM1 probability over the top k docs, interpolated with the query MLE for RM3.
+     * Term probs live in a primitive array indexed by feedback term id; only the selected terms become Strings.
+     * Query terms absent from the feedback docs are candidates too for RM3, with ids from getNumTerms() on.
+     * @param terms : filled with the selected terms, in descending order of weight
+     * @param weights : filled with their weights
+     * @return number of selected terms
+     */
+    private static int getExpansionTerms(LMDirichletProbability lmDirichletProbability, String[] queryTerms, int[] queryTermIds,
+                                         int k, int n, double lambda, String[] terms, double[] weights) {
+        // Get term prob across documents using reweighted term prob, for all terms in top docs; -1 for other terms
+        int numTerms = lmDirichletProbability.getNumTerms();
+        double[] termProbs = lmDirichletProbability.getTermProbSumsAcrossDocs(k);
+        double demoninator = 0;
+        for(int termId = 0; termId < numTerms; ++termId) {
+            if(termProbs[termId] < 0)
+                continue;
+            demoninator += termProbs[termId];  // Summed in term order, however the marginals were computed
+            if(debug)
+                System.out.println(String.format("term: %s, termProbAcrossDoc: %e",
+                        lmDirichletProbability.getTerm(termId, new BytesRef()).utf8ToString(), termProbs[termId]));
+        }
 
         // Normalize termProbAcrossDoc
-        Map<String, Double> normalizedTermProbMap = new HashMap<>();
-        double demoninator = 0;
-        for(double prob: termProbAcrossDocMap.values())
-            demoninator += prob;
-        for(String termText: termProbAcrossDocMap.keySet())
-            normalizedTermProbMap.put(termText, termProbAcrossDocMap.get(termText) / demoninator);
+        int numCandidates = 0;
+        for(int termId = 0; termId < numTerms; ++termId) {
+            if(termProbs[termId] >= 0) {
+                termProbs[termId] /= demoninator;
+                ++numCandidates;
+            }
+        }
+        Metrics.count(Metrics.Counter.EXPANSION_CANDIDATES, numCandidates);
 
-        // Interpolation - RM3
-        Map<String, Double> originalQueryLM = new HashMap<>();
+        // Interpolation - RM3; distinct query terms with their MLE, no smoothing here
+        String[] extraTerms = new String[queryTerms.length];
+        double[] extraProbs = new double[queryTerms.length];
+        int numExtraTerms = 0;
         if(lambda > 0) {
-            int queryLen = queryTerms.length;
-            Map<String, Integer> queryTermFreq = new HashMap<>();
-            Arrays.stream(queryTerms).forEach(queryTerm -> {
-                queryTermFreq.put(queryTerm, queryTermFreq.getOrDefault(queryTerm, 0) + 1);
-            });
-
-            queryTermFreq.entrySet().forEach(entry -> {
-                originalQueryLM.put(entry.getKey(), entry.getValue() / (double)queryLen);  // No smoothing here
-            });
-
             double coefMle = 1 - lambda, coefRm1 = lambda;
-            originalQueryLM.entrySet().forEach(entry -> {
-                double newProb = coefMle * entry.getValue() + coefRm1 * normalizedTermProbMap.getOrDefault(entry.getKey(), 0D);
-                normalizedTermProbMap.put(entry.getKey(), newProb);
-            });
+            for(int i = 0; i < queryTerms.length; ++i) {
+                boolean seen = false;
+                int freq = 0;
+                for(int j = 0; j < queryTerms.length; ++j) {
+                    if(queryTerms[j].equals(queryTerms[i])) {
+                        seen |= j < i;
+                        ++freq;
+                    }
+                }
+                if(seen)
+                    continue;
+                double mle = freq / (double)queryTerms.length;
+                int termId = queryTermIds[i];
+                if(termId < 0) {
+                    extraTerms[numExtraTerms] = queryTerms[i];
+                    extraProbs[numExtraTerms++] = coefMle * mle;
+                } else {
+                    termProbs[termId] = coefMle * mle + coefRm1 * Math.max(termProbs[termId], 0);
+                }
+            }
         }
         // End of Interpolation - RM3
 
-        // Sort terms by prob
-        Stream<String> sortedStream = normalizedTermProbMap.entrySet().stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .map(entry -> entry.getKey());
-
         // Remove stop words
-        Set<String> stopWords = new HashSet<>(Arrays.asList(Util.getStopWords()));
-        List<String> sorted = sortedStream
-                .filter(term -> !stopWords.contains(term))
-                .limit(n)
-                .collect(Collectors.toList());
-
-        // Expand query
-        Set<String> queryTermsSet = new HashSet<>(Arrays.asList(queryTerms));
-        String[] newQueryTerms = Stream.concat(
-                Arrays.stream(queryTerms),
-                sorted.stream().filter(term -> !queryTermsSet.contains(term)))
-                .toArray(String[]::new);
-        if(true)
-            System.out.println("New query: " + Arrays.toString(newQueryTerms));
+        for(String stopWord: STOP_WORDS) {
+            int termId = lmDirichletProbability.getTermId(stopWord);
+            if(termId >= 0)
+                termProbs[termId] = -1;
+        }
 
-        // Recalculate queryProb
-        Map<Integer, Double> newQueryProbMap = getQueryProbMap(queryTerms, lmDirichletProbability, topDocs.scoreDocs.length, topDocs);
-
-        // Sort docs by new queryProb
-        int numQueryTerms = newQueryTerms.length;
-        ScoreDoc[] rankedDocs = newQueryProbMap.entrySet().stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .map(entry -> {
-                    float newProb = (float)Math.pow(entry.getValue(), 1.0 / numQueryTerms) ;  // Normalize prob
-                    // System.out.println("newProb: " + newProb);
-                    return new ScoreDoc(entry.getKey(), newProb);})
-                .toArray(ScoreDoc[]::new);
-        //return Arrays.toString(newQueryTerms);
-        return rankedDocs;
+        // Top n terms by prob
+        TopScores topTerms = new TopScores(n);
+        for(int termId = 0; termId < numTerms; ++termId) {
+            if(termProbs[termId] >= 0)
+                topTerms.offer(termId, termProbs[termId]);
+        }
+        for(int i = 0; i < numExtraTerms; ++i) {
+            if(!STOP_WORDS.contains(extraTerms[i]))
+                topTerms.offer(numTerms + i, extraProbs[i]);
+        }
+        int[] termIds = new int[n];
+        int numSelected = topTerms.drainDescending(termIds, weights);
+        BytesRef scratch = new BytesRef();
+        for(int i = 0; i < numSelected; ++i) {
+            int termId = termIds[i];
+            terms[i] = termId < numTerms ? lmDirichletProbability.getTerm(termId, scratch).utf8ToString() : extraTerms[termId - numTerms];
+        }
+        return numSelected;
     }
 
-    private static Map<Integer, Double> getQueryProbMap(String[] queryTerms, LMDirichletProbability lmDirichletProbability,
-                                                       int k, TopDocs topDocs){
-        Map<Integer, Double> queryProbMap = new HashMap<>();
-        ScoreDoc[] hits = topDocs.scoreDocs;
-        for(int i = 0; i < k; ++i) {
-            double queryProb = 1;
-            Integer docId = hits[i].doc;
-
-            for(String queryTerm: queryTerms) {
-                double termProb = 1;
-                termProb = lmDirichletProbability.getTermProb(queryTerm, docId);
-                queryProb *= termProb;
-            }
-            queryProbMap.put(docId, queryProb);
-        }
-        return queryProbMap;
+    private static int[] getTermIds(String[] terms, LMDirichletProbability lmDirichletProbability) {
+        int[] termIds = new int[terms.length];
+        for(int i = 0; i < terms.length; ++i)
+            termIds[i] = lmDirichletProbability.getTermId(terms[i]);
+        return termIds;
     }
 
     public static TopDocs doSearch(IndexSearcher searcher, Query query, int numRetrievedDocs) throws IOException {
-        TopDocs topDocs = searcher.search(query, numRetrievedDocs);
+        String key = resultCache == null ? null : ResultCache.getSearchKey(searcher, query, numRetrievedDocs);
+        TopDocs topDocs = key == null ? null : resultCache.getTopDocs(key);
+        if(topDocs == null) {
+            topDocs = searcher.search(query, numRetrievedDocs);
+            if(key != null)
+                resultCache.putTopDocs(key, topDocs);
+        }
 
         int numTotalHits = Math.toIntExact(topDocs.totalHits.value);
         // System.out.println(numTotalHits + " total matching documents");
@@ -242,14 +731,20 @@ public class SearchFiles {
         return topDocs;
     }
 
-    public static void printTopDocs(StringBuilder sb, IndexSearcher searcher, TopDocs topDocs, int queryId, String userId) throws Exception {
+    /**
+     * @return docNo of each hit
+     */
+    public static String[] printTopDocs(Appendable out, DocNoResolver docNoResolver, TopDocs topDocs, int queryId, String userId) throws Exception {
         ScoreDoc[] hits = topDocs.scoreDocs;
+        long start = Metrics.start();
+        String[] docNos = docNoResolver.resolve(hits);
+        Metrics.stop(Metrics.Stage.DOCNO, start);
         for(int i = 0; i < hits.length; ++i) {
-            String docNo = searcher.doc(hits[i].doc).get(DocField.DOC_NO);
-            String str = String.format("%d \t Q0 \t %s \t %d \t %.4f \t %s\n", queryId, docNo, i + 1, hits[i].score, userId);
+            String str = String.format("%d \t Q0 \t %s \t %d \t %.4f \t %s\n", queryId, docNos[i], i + 1, hits[i].score, userId);
             // System.out.print(str);
-            sb.append(str);
+            out.append(str);
         }
+        return docNos;
     }
 
     public static ArrayList<QueryField> parseQueries(Path file) {
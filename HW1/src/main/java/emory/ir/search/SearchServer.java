@@ -0,0 +1,252 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.Shards;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.ReaderManager;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+
+/**
+ * Long-running search server: the index is opened once and the reader, collection model and term vector cache
+ * stay warm across requests. The reader is reopened when a new commit appears.
+ *
+ * Line-based protocol on a local socket; one request per line:
+ *   ALGORITHM [k=N] [n=N] [lambda=X] [mu=X] [depth=N] [id=N] [requery=true] query text
+ * The response is the result in TREC run format (tagged with the algorithm), terminated by an empty line;
+ * a bad request gets a single "ERROR message" line instead. "QUIT" closes the connection.
+ */
+public class SearchServer {
+
+    private static int numThreads = Runtime.getRuntime().availableProcessors();  // Concurrent connections
+    private static int backlog = 64;  // Connections waiting for a thread
+    private static long refreshMillis = 1000;  // Check for a new commit this often
+    private static long termVectorCacheMB = 256;
+
+    private static ReaderManager readerManager;
+    private static Analyzer analyzer;
+
+    private SearchServer() {
+    }
+
+    public static void run(String[] args) throws Exception {
+        String usage = "Usage: serve [Index Files --> Absolute Path to index folder]\n" +
+                       "       [Port --> local port to listen on]\n" +
+                       "       [Options --> --threads N, --refresh-ms N, --tv-cache-mb N, --feedback term-vectors|forward-index|postings|summaries, --summary-terms T, --feedback-threads N]";
+        if(args.length < 3) {
+            System.out.println(usage);
+            System.exit(0);
+        }
+        String index = args[1];
+        int port = Integer.parseInt(args[2]);
+        parseOptions(args, 3);
+        if(!Shards.list(Paths.get(index)).isEmpty())
+            throw new IllegalArgumentException("serve needs a single index; sharded indexes are only searched in batch");
+
+        SearchFiles.setVerbose(false);
+        TermVectorCache.setDefaults(termVectorCacheMB * 1024 * 1024, numThreads);
+        analyzer = SearchFiles.newAnalyzer();
+        readerManager = new ReaderManager(DirectoryReader.open(FSDirectory.open(Paths.get(index))));
+        // Load the collection model of a new reader before queries see it
+        readerManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) throws IOException {
+                if(!didRefresh)
+                    return;
+                DirectoryReader reader = readerManager.acquire();
+                try {
+                    CollectionModel.get(reader);
+                    System.out.printf("Reader reopened: version %d, %d docs\n", reader.getVersion(), reader.numDocs());
+                } finally {
+                    readerManager.release(reader);
+                }
+            }
+        });
+        DirectoryReader reader = readerManager.acquire();
+        try {
+            CollectionModel.get(reader);
+        } finally {
+            readerManager.release(reader);
+        }
+
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                readerManager.maybeRefresh();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+
+        // Bounded pool and queue; connections beyond both are turned away
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(backlog));
+        try(ServerSocket serverSocket = new ServerSocket(port, backlog, InetAddress.getLoopbackAddress())) {
+            System.out.printf("Serving %s on port %d with %d threads\n", index, serverSocket.getLocalPort(), numThreads);
+            acceptConnections(serverSocket, executor);
+        } finally {
+            refresher.shutdownNow();
+            executor.shutdownNow();
+            readerManager.close();
+        }
+    }
+
+    /**
+     * Hand each connection to the executor until the server socket is closed on shutdown.
+     */
+    private static void acceptConnections(ServerSocket serverSocket, ThreadPoolExecutor executor) throws IOException {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }));
+        while(true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if(serverSocket.isClosed())
+                    return;  // Shut down
+                throw e;
+            }
+            try {
+                executor.execute(() -> handle(socket));
+            } catch (RejectedExecutionException e) {
+                try(Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                    out.write("ERROR server busy\n");
+                }
+            }
+        }
+    }
+
+    private static void parseOptions(String[] args, int offset) {
+        for(int i = offset; i < args.length; ++i) {
+            if(args[i].equals("--threads") && i + 1 < args.length)
+                numThreads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--refresh-ms") && i + 1 < args.length)
+                refreshMillis = Long.parseLong(args[++i]);
+            else if(args[i].equals("--tv-cache-mb") && i + 1 < args.length)
+                termVectorCacheMB = Long.parseLong(args[++i]);
+            else if(args[i].equals("--feedback-threads") && i + 1 < args.length)
+                LMDirichletProbability.setParallelism(Integer.parseInt(args[++i]));
+            else if(args[i].equals("--feedback") && i + 1 < args.length)
+                TermVectorCache.setDefaultSourceType(FeedbackSource.Type.valueOf(args[++i].toUpperCase().replace('-', '_')));
+            else if(args[i].equals("--summary-terms") && i + 1 < args.length)
+                SummaryFeedback.setDefaultNumTerms(Integer.parseInt(args[++i]));
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try(Socket s = socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty())
+                    continue;
+                if(line.equalsIgnoreCase("QUIT"))
+                    break;
+                try {
+                    // Buffered so that a failed request sends no partial result
+                    StringBuilder result = new StringBuilder();
+                    search(result, line);
+                    out.append(result).append('\n');
+                } catch (IllegalArgumentException e) {
+                    out.write("ERROR " + e.getMessage() + "\n");
+                } catch (Exception e) {
+                    out.write("ERROR " + e + "\n");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Parse and serve one request line.
+     */
+    private static void search(Appendable out, String request) throws Exception {
+        String[] tokens = request.split("\\s+");
+        String algorithm = tokens[0];
+        if(!algorithm.equalsIgnoreCase("BM25") && !algorithm.equalsIgnoreCase("LMLaplace")
+                && !algorithm.equalsIgnoreCase("RM1") && !algorithm.equalsIgnoreCase("RM3"))
+            throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+
+        int k = 35, n = 70, depth = 1000, queryId = 0;
+        double lambda = 0.75, mu = 2000;
+        boolean requery = false;
+        int i = 1;
+        for(; i < tokens.length && tokens[i].indexOf('=') > 0; ++i) {
+            String key = tokens[i].substring(0, tokens[i].indexOf('='));
+            String value = tokens[i].substring(tokens[i].indexOf('=') + 1);
+            try {
+                if(key.equals("k"))
+                    k = Integer.parseInt(value);
+                else if(key.equals("n"))
+                    n = Integer.parseInt(value);
+                else if(key.equals("lambda"))
+                    lambda = Double.parseDouble(value);
+                else if(key.equals("mu"))
+                    mu = Double.parseDouble(value);
+                else if(key.equals("depth"))
+                    depth = Integer.parseInt(value);
+                else if(key.equals("id"))
+                    queryId = Integer.parseInt(value);
+                else if(key.equals("requery"))
+                    requery = Boolean.parseBoolean(value);
+                else
+                    throw new IllegalArgumentException("Unknown parameter: " + key);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value of " + key + ": " + value);
+            }
+        }
+        if(i == tokens.length)
+            throw new IllegalArgumentException("Empty query");
+        StringBuilder text = new StringBuilder();
+        for(; i < tokens.length; ++i)
+            text.append(tokens[i]).append(' ');
+
+        // QueryParser is not thread-safe; one per request is cheap
+        Query query = new QueryParser(DocField.TEXT, analyzer).parse(QueryParser.escape(text.toString()));
+        DirectoryReader reader = readerManager.acquire();
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(SearchFiles.getSimilarity(algorithm, mu, reader));
+            TopDocs topDocs = SearchFiles.doSearch(searcher, query, depth);
+            if((algorithm.equalsIgnoreCase("RM1") || algorithm.equalsIgnoreCase("RM3")) && topDocs.scoreDocs.length > 0) {
+                int rmK = Math.min(k, topDocs.scoreDocs.length);
+                double rmLambda = algorithm.equalsIgnoreCase("RM3") ? lambda : -1;
+                if(requery)
+                    topDocs = SearchFiles.reQuery(searcher, query, topDocs, rmK, n, rmLambda, mu, depth);
+                else
+                    topDocs.scoreDocs = SearchFiles.reRank(reader, query, topDocs, rmK, n, rmLambda, mu);
+            }
+            SearchFiles.printTopDocs(out, new DocNoResolver(reader), topDocs, queryId, algorithm);
+        } finally {
+            readerManager.release(reader);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.DocSummary;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Approximate feedback from the {@link DocSummary} in the TEXT_SUMMARY binary doc values, read column-wise in doc id order:
+ * the top terms of each doc and its full length. Reading a doc costs the same however long it is;
+ * terms left out of its summary count as absent from the doc, so the feedback model only approximates the exact one.
+ * Thread-safe: doc values iterators are created per call.
+ */
+public class SummaryFeedback implements FeedbackSource {
+
+    static int defaultNumTerms = Integer.MAX_VALUE;  // All terms in the summaries
+
+    private final IndexReader reader;
+    private final CollectionModel collectionModel;
+    private final int numTerms;
+
+    /**
+     * @param numTerms : top terms read of each summary, at most as many as were indexed
+     */
+    public SummaryFeedback(IndexReader reader, int numTerms) throws IOException {
+        this.reader = reader;
+        this.collectionModel = CollectionModel.get(reader);
+        this.numTerms = numTerms;
+    }
+
+    /**
+     * Set the top terms read by sources created from now on.
+     */
+    public static void setDefaultNumTerms(int numTerms) {
+        defaultNumTerms = numTerms;
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        // Visit docs in doc id order: (docId, index) packed in a long
+        long[] order = new long[docIds.length];
+        for(int i = 0; i < docIds.length; ++i)
+            order[i] = ((long)docIds[i] << 32) | i;
+        Arrays.sort(order);
+
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        DocSummary.Decoder decoder = new DocSummary.Decoder();
+        long[] entries = new long[0];
+        List<LeafReaderContext> leaves = reader.leaves();
+        int leafIdx = -1, leafEnd = 0;
+        LeafReaderContext leaf = null;
+        BinaryDocValues values = null;
+        for(long entry: order) {
+            int docId = (int)(entry >>> 32), idx = (int)entry;
+            while(docId >= leafEnd) {
+                leaf = leaves.get(++leafIdx);
+                leafEnd = leaf.docBase + leaf.reader().maxDoc();
+                values = DocValues.getBinary(leaf.reader(), DocField.TEXT_SUMMARY);
+            }
+            if(!values.advanceExact(docId - leaf.docBase) || !decoder.reset(values.binaryValue()))
+                throw new IllegalStateException("Doc " + docId + " has no summary; index with --summaries");
+
+            // Summaries are by weight; vectors ascend by ordinal
+            int count = Math.min(numTerms, decoder.size());
+            int[] ords = new int[count], freqs = new int[count];
+            int size = decoder.read(collectionModel, ords, freqs, count);
+            if(size < count) {
+                ords = Arrays.copyOf(ords, size);
+                freqs = Arrays.copyOf(freqs, size);
+            }
+            if(entries.length < size)
+                entries = new long[size];
+            for(int i = 0; i < size; ++i)
+                entries[i] = ((long)ords[i] << 32) | freqs[i];
+            Arrays.sort(entries, 0, size);
+            for(int i = 0; i < size; ++i) {
+                ords[i] = (int)(entries[i] >>> 32);
+                freqs[i] = (int)entries[i];
+            }
+            vectors[idx] = new DocTermVector(ords, freqs, decoder.getDocLength());
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,297 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.Shards;
+import lombok.Value;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parameter sweep in one JVM: every configuration of a grid over algorithm, mu, k, n and lambda is run
+ * on all queries and evaluated in process against qrels, over one open reader.
+ *
+ * The unit of parallel work is a query: a worker searches it once per first-stage similarity, builds the feedback
+ * model once per mu, and runs every configuration on these shared results. Shared state stays per query, so memory
+ * does not grow with the number of queries, and cores stay busy however the grid is shaped.
+ * RM configurations with summary terms build their feedback model from the top terms of the doc summaries instead of
+ * the full docs, so their rows show the latency and effectiveness of the approximate model next to the exact one.
+ */
+public class Sweep {
+
+    private static int numThreads = Runtime.getRuntime().availableProcessors();
+    private static int numRetrievedDocs = 1000;
+    private static int precisionAtK = 10;
+    private static long termVectorCacheMB = 256;
+    private static String[] algorithms = {"BM25", "LMLaplace", "RM1", "RM3"};
+    private static double[] mus = {2000};
+    private static int[] ks = {35};
+    private static int[] ns = {70};
+    private static double[] lambdas = {0.75};
+    private static int[] summaryTerms = {0};  // RM feedback from the top terms of the doc summaries; 0 for the full docs
+
+    @Value
+    static class Config {
+        String algorithm;
+        double mu;
+        int k, n;
+        double lambda;
+        int summaryTerms;
+
+        boolean isRM() {
+            return algorithm.equalsIgnoreCase("RM1") || algorithm.equalsIgnoreCase("RM3");
+        }
+
+        @Override
+        public String toString() {
+            if(!isRM())
+                return algorithm;
+            String params = String.format("%s mu=%s k=%d n=%d", algorithm, mu, k, n);
+            if(algorithm.equalsIgnoreCase("RM3"))
+                params += " lambda=" + lambda;
+            return summaryTerms > 0 ? params + " summary=" + summaryTerms : params;
+        }
+    }
+
+    /**
+     * Effectiveness and latency of one configuration on one query
+     */
+    private static class Result {
+        double averagePrecision, precisionAtK, rPrecision, bpref;
+        long searchNanos, feedbackNanos, rankNanos;
+    }
+
+    private Sweep() {
+    }
+
+    public static void run(String[] args) throws Exception {
+        String usage = "Usage: sweep [Index Files --> Absolute Path to index folder]\n" +
+                       "       [Queries --> Absolute Path to queries file]\n" +
+                       "       [Qrels --> Absolute Path to TREC relevance judgments]\n" +
+                       "       [Table --> Absolute Path to the results table]\n" +
+                       "       [Options --> --algorithms A,B, --mu X,Y, --k N,M, --n N,M, --lambda X,Y, --summary-terms T,U, --threads N, --depth N, --p-at K, --tv-cache-mb N]";
+        if(args.length < 5) {
+            System.out.println(usage);
+            System.exit(0);
+        }
+        String index = args[1];
+        String queries = args[2];
+        String qrelsPath = args[3];
+        String table = args[4];
+        parseOptions(args, 5);
+
+        List<Config> configs = getConfigs();
+        ArrayList<QueryField> queryList = SearchFiles.parseQueries(Paths.get(queries));
+        Map<Integer, Map<String, Integer>> qrels = Evaluation.readQrels(Paths.get(qrelsPath));
+        QueryParser parser = new QueryParser(DocField.TEXT, SearchFiles.newAnalyzer());
+        Query[] parsedQueries = new Query[queryList.size()];
+        for(int i = 0; i < queryList.size(); ++i)
+            parsedQueries[i] = parser.parse(QueryParser.escape(queryList.get(i).getText()));
+        System.out.printf("Sweeping %d configurations over %d queries with %d threads\n", configs.size(), queryList.size(), numThreads);
+
+        SearchFiles.setVerbose(false);
+        TermVectorCache.setDefaults(termVectorCacheMB * 1024 * 1024, numThreads);  // Hits of different mu overlap
+        long start = System.currentTimeMillis();
+        Result[][] results = new Result[configs.size()][queryList.size()];
+        try(IndexReader reader = Shards.open(Paths.get(index))) {
+            DocNoResolver docNoResolver = new DocNoResolver(reader);
+            Map<Integer, FeedbackSource> feedbackSources = new HashMap<>();
+            for(int t: summaryTerms)
+                feedbackSources.put(t, t == 0 ? TermVectorCache.get(reader) : new TermVectorCache(new SummaryFeedback(reader, t),
+                        termVectorCacheMB * 1024 * 1024, numThreads));
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for(int i = 0; i < queryList.size(); ++i) {
+                    final int queryIdx = i;
+                    Map<String, Integer> judgments = qrels.getOrDefault(queryList.get(i).getNum(), Collections.emptyMap());
+                    futures.add(executor.submit(() -> {
+                        sweepQuery(reader, docNoResolver, feedbackSources, parsedQueries[queryIdx], judgments, configs, results, queryIdx);
+                        return null;
+                    }));
+                }
+                for(Future<?> future: futures)
+                    future.get();
+            } finally {
+                executor.shutdown();
+            }
+        }
+        System.out.printf("Swept in %d ms\n", System.currentTimeMillis() - start);
+
+        // Topics without judgments are left out, as in trec_eval
+        List<Integer> judged = new ArrayList<>();
+        for(int i = 0; i < queryList.size(); ++i) {
+            if(qrels.containsKey(queryList.get(i).getNum()))
+                judged.add(i);
+        }
+        writeTable(table, configs, results, judged);
+        System.out.println("Results written to " + table);
+    }
+
+    /**
+     * Run every configuration on one query, sharing first-stage hits per similarity and feedback models per mu and source.
+     * @param feedbackSources : by summary terms, 0 for the full docs
+     */
+    private static void sweepQuery(IndexReader reader, DocNoResolver docNoResolver, Map<Integer, FeedbackSource> feedbackSources,
+                                   Query query, Map<String, Integer> judgments, List<Config> configs, Result[][] results,
+                                   int queryIdx) throws Exception {
+        Map<String, TopDocs> topDocsBySimilarity = new HashMap<>();
+        Map<String, Long> searchNanos = new HashMap<>();
+        Map<String, LMDirichletProbability> feedbackModels = new HashMap<>();
+        Map<String, Long> feedbackNanos = new HashMap<>();
+        for(int c = 0; c < configs.size(); ++c) {
+            Config config = configs.get(c);
+            Result result = new Result();
+
+            Similarity similarity = SearchFiles.getSimilarity(config.getAlgorithm(), config.getMu(), reader);
+            String similarityKey = similarity.toString();
+            TopDocs topDocs = topDocsBySimilarity.get(similarityKey);
+            if(topDocs == null) {
+                long searchStart = System.nanoTime();
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(similarity);
+                topDocs = SearchFiles.doSearch(searcher, query, numRetrievedDocs);
+                topDocsBySimilarity.put(similarityKey, topDocs);
+                searchNanos.put(similarityKey, System.nanoTime() - searchStart);
+            }
+            result.searchNanos = searchNanos.get(similarityKey);
+
+            long rankStart;
+            ScoreDoc[] hits = topDocs.scoreDocs;
+            if(config.isRM() && hits.length > 0) {
+                // The first stage of RM is the Dirichlet LM with the mu of the feedback model, so both are shared alike
+                String feedbackKey = similarityKey + '\n' + config.getSummaryTerms();
+                LMDirichletProbability model = feedbackModels.get(feedbackKey);
+                if(model == null) {
+                    long feedbackStart = System.nanoTime();
+                    model = SearchFiles.getFeedbackModel(reader, feedbackSources.get(config.getSummaryTerms()), topDocs, config.getMu());
+                    feedbackModels.put(feedbackKey, model);
+                    feedbackNanos.put(feedbackKey, System.nanoTime() - feedbackStart);
+                }
+                result.feedbackNanos = feedbackNanos.get(feedbackKey);
+                rankStart = System.nanoTime();
+                double lambda = config.getAlgorithm().equalsIgnoreCase("RM3") ? config.getLambda() : -1;
+                hits = SearchFiles.reRank(model, query, topDocs, Math.min(config.getK(), hits.length), config.getN(), lambda);
+            } else {
+                rankStart = System.nanoTime();
+            }
+            String[] docNos = docNoResolver.resolve(hits);
+            result.rankNanos = System.nanoTime() - rankStart;
+
+            result.averagePrecision = Evaluation.averagePrecision(docNos, judgments);
+            result.precisionAtK = Evaluation.precisionAt(docNos, judgments, precisionAtK);
+            result.rPrecision = Evaluation.rPrecision(docNos, judgments);
+            result.bpref = Evaluation.bpref(docNos, judgments);
+            results[c][queryIdx] = result;
+        }
+    }
+
+    /**
+     * Tab-separated: one row per configuration with mean effectiveness over judged queries, and mean latency per query
+     * of the first-stage search and feedback model it shares with other configurations and of its own ranking.
+     */
+    private static void writeTable(String table, List<Config> configs, Result[][] results, List<Integer> judged) throws Exception {
+        double bestMap = -1;
+        Config best = null;
+        try(BufferedWriter out = Files.newBufferedWriter(Paths.get(table))) {
+            out.write(String.format("algorithm\tmu\tk\tn\tlambda\tsummary\tMAP\tP@%d\tR-prec\tbpref\tsearch_ms\tfeedback_ms\trank_ms\trank_p95_ms\n",
+                    precisionAtK));
+            for(int c = 0; c < configs.size(); ++c) {
+                Config config = configs.get(c);
+                double map = 0, p = 0, rPrec = 0, bpref = 0;
+                for(int q: judged) {
+                    Result result = results[c][q];
+                    map += result.averagePrecision;
+                    p += result.precisionAtK;
+                    rPrec += result.rPrecision;
+                    bpref += result.bpref;
+                }
+                int numJudged = Math.max(judged.size(), 1);
+                long searchNanos = 0, feedbackNanos = 0;
+                LatencyHistogram rankNanos = new LatencyHistogram();
+                for(Result result: results[c]) {
+                    searchNanos += result.searchNanos;
+                    feedbackNanos += result.feedbackNanos;
+                    rankNanos.record(result.rankNanos);
+                }
+                int numQueries = Math.max(results[c].length, 1);
+                out.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%.4f\t%.4f\t%.4f\t%.4f\t%.2f\t%.2f\t%.2f\t%.2f\n",
+                        config.getAlgorithm(),
+                        config.isRM() ? String.valueOf(config.getMu()) : "-",
+                        config.isRM() ? String.valueOf(config.getK()) : "-",
+                        config.isRM() ? String.valueOf(config.getN()) : "-",
+                        config.getAlgorithm().equalsIgnoreCase("RM3") ? String.valueOf(config.getLambda()) : "-",
+                        !config.isRM() ? "-" : config.getSummaryTerms() > 0 ? String.valueOf(config.getSummaryTerms()) : "exact",
+                        map / numJudged, p / numJudged, rPrec / numJudged, bpref / numJudged,
+                        searchNanos / 1e6 / numQueries, feedbackNanos / 1e6 / numQueries,
+                        rankNanos.getMean() / 1e6, rankNanos.getPercentile(95) / 1e6));
+                if(map / numJudged > bestMap) {
+                    bestMap = map / numJudged;
+                    best = config;
+                }
+            }
+        }
+        if(best != null)
+            System.out.printf("Best MAP %.4f: %s\n", bestMap, best);
+    }
+
+    /**
+     * The grid, without configurations that differ only in parameters their algorithm ignores
+     */
+    static List<Config> getConfigs() {
+        List<Config> configs = new ArrayList<>();
+        for(String algorithm: algorithms) {
+            boolean isRM = algorithm.equalsIgnoreCase("RM1") || algorithm.equalsIgnoreCase("RM3");
+            boolean usesLambda = algorithm.equalsIgnoreCase("RM3");
+            for(double mu: isRM ? mus : new double[]{mus[0]})
+                for(int k: isRM ? ks : new int[]{ks[0]})
+                    for(int n: isRM ? ns : new int[]{ns[0]})
+                        for(double lambda: usesLambda ? lambdas : new double[]{lambdas[0]})
+                            for(int t: isRM ? summaryTerms : new int[]{0})
+                                configs.add(new Config(algorithm, mu, k, n, lambda, t));
+        }
+        return configs;
+    }
+
+    private static void parseOptions(String[] args, int offset) {
+        for(int i = offset; i < args.length; ++i) {
+            if(i + 1 >= args.length)
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            String value = args[++i];
+            if(args[i - 1].equals("--algorithms"))
+                algorithms = value.split(",");
+            else if(args[i - 1].equals("--mu"))
+                mus = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+            else if(args[i - 1].equals("--k"))
+                ks = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            else if(args[i - 1].equals("--n"))
+                ns = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            else if(args[i - 1].equals("--lambda"))
+                lambdas = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+            else if(args[i - 1].equals("--summary-terms"))
+                summaryTerms = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            else if(args[i - 1].equals("--threads"))
+                numThreads = Integer.parseInt(value);
+            else if(args[i - 1].equals("--depth"))
+                numRetrievedDocs = Integer.parseInt(value);
+            else if(args[i - 1].equals("--p-at"))
+                precisionAtK = Integer.parseInt(value);
+            else if(args[i - 1].equals("--tv-cache-mb"))
+                termVectorCacheMB = Long.parseLong(value);
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+        }
+    }
+}
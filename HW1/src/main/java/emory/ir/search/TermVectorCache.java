@@ -0,0 +1,175 @@
+package emory.ir.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.Accountable;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of decoded {@link DocTermVector}s over a {@link FeedbackSource}, shared across queries on a reader.
+ * Entries are accounted by their RAM size and the least recently used ones are evicted beyond the limit.
+ * The cache is split into independently locked segments by doc id; one segment suits a single thread,
+ * more segments reduce contention between parallel query workers. Decoding happens outside the locks.
+ */
+public class TermVectorCache implements FeedbackSource, Accountable {
+
+    private static final long ENTRY_OVERHEAD_BYTES = 64;  // Map entry and boxed key
+
+    private static long defaultMaxBytes = 256L * 1024 * 1024;
+    private static int defaultConcurrency = 1;
+    private static FeedbackSource.Type defaultSourceType = null;  // Detected from the index
+    private static final ReaderCache<TermVectorCache> caches = new ReaderCache<>(reader -> new TermVectorCache(
+            FeedbackSource.create(reader, defaultSourceType == null ? FeedbackSource.detect(reader) : defaultSourceType),
+            defaultMaxBytes, defaultConcurrency));
+
+    private final FeedbackSource source;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TermVectorCache(IndexReader reader, long maxBytes, int concurrency) throws IOException {
+        this(FeedbackSource.create(reader, FeedbackSource.detect(reader)), maxBytes, concurrency);
+    }
+
+    public TermVectorCache(FeedbackSource source, long maxBytes, int concurrency) {
+        this.source = source;
+        this.segments = new Segment[Math.max(1, concurrency)];
+        for(int i = 0; i < segments.length; ++i)
+            segments[i] = new Segment(maxBytes / segments.length);
+    }
+
+    /**
+     * Get the shared cache of the reader, created with the current defaults on first use.
+     */
+    public static TermVectorCache get(IndexReader reader) throws IOException {
+        return caches.get(reader);
+    }
+
+    /**
+     * Set size and number of segments of caches created from now on.
+     */
+    public static void setDefaults(long maxBytes, int concurrency) {
+        defaultMaxBytes = maxBytes;
+        defaultConcurrency = concurrency;
+    }
+
+    /**
+     * Set the source of caches created from now on; null to detect it from the index.
+     */
+    public static void setDefaultSourceType(FeedbackSource.Type type) {
+        defaultSourceType = type;
+    }
+
+    public FeedbackSource getSource() {
+        return source;
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return source.getCollectionModel();
+    }
+
+    @Override
+    public boolean isSplittable() {
+        return source.isSplittable();
+    }
+
+    @Override
+    public boolean isExact() {
+        return source.isExact();
+    }
+
+    /**
+     * Cached vectors are returned as is; the misses are read from the source in one batch.
+     */
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        int[] missIdxs = new int[docIds.length];
+        int numMisses = 0;
+        for(int i = 0; i < docIds.length; ++i) {
+            vectors[i] = segments[docIds[i] % segments.length].get(docIds[i]);
+            if(vectors[i] == null)
+                missIdxs[numMisses++] = i;
+        }
+        hits.add(docIds.length - numMisses);
+        misses.add(numMisses);
+        if(numMisses == 0)
+            return vectors;
+
+        int[] missDocIds = new int[numMisses];
+        for(int i = 0; i < numMisses; ++i)
+            missDocIds[i] = docIds[missIdxs[i]];
+        DocTermVector[] missVectors = source.getTermVectors(missDocIds);
+        for(int i = 0; i < numMisses; ++i) {
+            int docId = missDocIds[i];
+            vectors[missIdxs[i]] = missVectors[i];
+            segments[docId % segments.length].put(docId, missVectors[i]);
+            Metrics.count(Metrics.Counter.TERM_VECTOR_TERMS, missVectors[i].size());
+        }
+        Metrics.count(Metrics.Counter.TERM_VECTORS_READ, numMisses);
+        return vectors;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long bytes = 0;
+        for(Segment segment: segments)
+            bytes += segment.ramBytesUsed();
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long numHits = getHits(), numMisses = getMisses();
+        return String.format("Term vector cache over %s: %d hits, %d misses (%.1f%% hit rate), %d MB",
+                source.getClass().getSimpleName(), numHits, numMisses, 100.0 * numHits / Math.max(numHits + numMisses, 1), ramBytesUsed() / (1024 * 1024));
+    }
+
+    private static class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<Integer, DocTermVector> vectors = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized DocTermVector get(int docId) {
+            return vectors.get(docId);
+        }
+
+        synchronized void put(int docId, DocTermVector vector) {
+            long vectorBytes = vector.ramBytesUsed() + ENTRY_OVERHEAD_BYTES;
+            if(vectorBytes > maxBytes)
+                return;
+            DocTermVector previous = vectors.put(docId, vector);
+            bytes += vectorBytes;
+            if(previous != null)
+                bytes -= previous.ramBytesUsed() + ENTRY_OVERHEAD_BYTES;
+
+            // Evict least recently used
+            Iterator<Map.Entry<Integer, DocTermVector>> it = vectors.entrySet().iterator();
+            while(bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().ramBytesUsed() + ENTRY_OVERHEAD_BYTES;
+                it.remove();
+            }
+        }
+
+        synchronized long ramBytesUsed() {
+            return bytes;
+        }
+    }
+}
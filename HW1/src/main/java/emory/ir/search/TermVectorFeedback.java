@@ -0,0 +1,110 @@
+package emory.ir.search;
+
+import emory.ir.index.DocField;
+import emory.ir.index.PackedTermVectorsReader;
+import org.apache.lucene.codecs.TermVectorsReader;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Feedback from the term vectors of TEXT.
+ * Segments written with the PackedVectors codec are read in bulk, their dictionary ordinals mapped to collection
+ * ordinals through a table built once per segment; other segments go through the Terms API.
+ */
+public class TermVectorFeedback implements FeedbackSource {
+
+    private final IndexReader reader;
+    private final CollectionModel collectionModel;
+    private final int[][] ordMaps;  // leaf -> segment ordinal -> collection ordinal, -1 if not in the model
+
+    public TermVectorFeedback(IndexReader reader) throws IOException {
+        this.reader = reader;
+        this.collectionModel = CollectionModel.get(reader);
+        this.ordMaps = new int[reader.leaves().size()][];
+    }
+
+    @Override
+    public CollectionModel getCollectionModel() {
+        return collectionModel;
+    }
+
+    @Override
+    public DocTermVector[] getTermVectors(int[] docIds) throws IOException {
+        DocTermVector[] vectors = new DocTermVector[docIds.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+        PackedTermVectorsReader[] packedReaders = new PackedTermVectorsReader[leaves.size()];
+        boolean[] checked = new boolean[leaves.size()];
+        int[] ords = null, freqs = null;
+        for(int i = 0; i < docIds.length; ++i) {
+            int leafIdx = ReaderUtil.subIndex(docIds[i], leaves);
+            if(!checked[leafIdx]) {
+                packedReaders[leafIdx] = getPackedReader(leaves.get(leafIdx).reader());
+                checked[leafIdx] = true;
+            }
+            PackedTermVectorsReader packed = packedReaders[leafIdx];
+            if(packed == null) {
+                vectors[i] = DocTermVector.read(reader, collectionModel, docIds[i]);
+                continue;
+            }
+            if(ords == null || ords.length < packed.getMaxTerms()) {
+                ords = new int[packed.getMaxTerms()];
+                freqs = new int[packed.getMaxTerms()];
+            }
+            LeafReaderContext leaf = leaves.get(leafIdx);
+            FieldInfo text = leaf.reader().getFieldInfos().fieldInfo(DocField.TEXT);
+            int size = packed.read(docIds[i] - leaf.docBase, text.number, ords, freqs);
+            vectors[i] = toVector(docIds[i], packed, getOrdMap(leafIdx, packed), ords, freqs, Math.max(size, 0));
+        }
+        return vectors;
+    }
+
+    /**
+     * @return reader of the packed term vectors of the segment, null if TEXT has no vectors or they are in another format
+     */
+    private static PackedTermVectorsReader getPackedReader(LeafReader leafReader) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(leafReader);
+        FieldInfo text = leafReader.getFieldInfos().fieldInfo(DocField.TEXT);
+        if(!(unwrapped instanceof CodecReader) || text == null || !text.hasVectors())
+            return null;
+        TermVectorsReader vectorsReader = ((CodecReader)unwrapped).getTermVectorsReader();  // Per thread
+        return vectorsReader instanceof PackedTermVectorsReader ? (PackedTermVectorsReader)vectorsReader : null;
+    }
+
+    private synchronized int[] getOrdMap(int leafIdx, PackedTermVectorsReader packed) {
+        if(ordMaps[leafIdx] == null) {
+            int[] ordMap = new int[packed.getNumTerms()];
+            BytesRef scratch = new BytesRef();
+            for(int ord = 0; ord < ordMap.length; ++ord)
+                ordMap[ord] = collectionModel.getOrd(packed.getTerm(ord, scratch));
+            ordMaps[leafIdx] = ordMap;
+        }
+        return ordMaps[leafIdx];
+    }
+
+    /**
+     * Both dictionaries are in byte order, so mapped ordinals still ascend.
+     */
+    private static DocTermVector toVector(int docId, PackedTermVectorsReader packed, int[] ordMap, int[] ords, int[] freqs,
+                                         int size) {
+        int[] vectorOrds = new int[size], vectorFreqs = new int[size];
+        int length = 0;
+        for(int i = 0; i < size; ++i) {
+            vectorOrds[i] = ordMap[ords[i]];
+            if(vectorOrds[i] < 0)
+                throw new IllegalStateException("Term of doc " + docId + " is not in the collection model: "
+                        + packed.getTerm(ords[i], new BytesRef()).utf8ToString());
+            vectorFreqs[i] = freqs[i];
+            length += freqs[i];
+        }
+        return new DocTermVector(vectorOrds, vectorFreqs, length);
+    }
+}
@@ -0,0 +1,93 @@
+package emory.ir.search;
+
+/**
+ * Bounded min-heap of (id, score) keeping the highest scores; equal scores keep the lower id.
+ * Primitive arrays only, so offering allocates nothing.
+ */
+class TopScores {
+
+    private final int[] ids;
+    private final double[] scores;
+    private int size = 0;
+
+    TopScores(int capacity) {
+        ids = new int[capacity];
+        scores = new double[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if a ranks below b
+     */
+    private static boolean lessThan(double scoreA, int idA, double scoreB, int idB) {
+        return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+    }
+
+    void offer(int id, double score) {
+        if(size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            upHeap(size++);
+        } else if(size > 0 && lessThan(scores[0], ids[0], score, id)) {
+            ids[0] = id;
+            scores[0] = score;
+            downHeap(0);
+        }
+    }
+
+    /**
+     * Empty the heap into the arrays, best first.
+     * @return number of entries
+     */
+    int drainDescending(int[] idsOut, double[] scoresOut) {
+        int n = size;
+        for(int i = n - 1; i >= 0; --i) {
+            idsOut[i] = ids[0];
+            scoresOut[i] = scores[0];
+            --size;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            downHeap(0);
+        }
+        return n;
+    }
+
+    private void upHeap(int i) {
+        int id = ids[i];
+        double score = scores[i];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(!lessThan(score, id, scores[parent], ids[parent]))
+                break;
+            ids[i] = ids[parent];
+            scores[i] = scores[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    private void downHeap(int i) {
+        if(size == 0)
+            return;
+        int id = ids[i];
+        double score = scores[i];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && lessThan(scores[child + 1], ids[child + 1], scores[child], ids[child]))
+                ++child;
+            if(!lessThan(scores[child], ids[child], score, id))
+                break;
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+}
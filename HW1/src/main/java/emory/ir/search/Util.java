@@ -11,4 +11,9 @@ public class Util {
         return stopWords;
     }
 
+    public static long getUsedHeapMB() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+    }
+
 }
@@ -0,0 +1,91 @@
+package emory.ir.search;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+
+/**
+ * Warm-up of a freshly opened reader: reads through the structures every query touches first, so their pages
+ * are faulted in before real traffic rather than by the first queries.
+ * - term dictionaries: every term and its stats, of every field;
+ * - norms: of every field that has them;
+ * - doc values: every value of every field, e.g. DOC_NO for the result lines and the forward index.
+ * Postings and term vectors are left to warm queries, which read those of the terms that matter.
+ */
+public class Warmup {
+
+    private long numTerms = 0;
+    private long numValues = 0;
+
+    private Warmup() {
+    }
+
+    /**
+     * @return counts of what was read, for the report
+     */
+    public static String touch(IndexReader reader) throws IOException {
+        Warmup warmup = new Warmup();
+        for(LeafReaderContext leaf: reader.leaves())
+            warmup.touch(leaf.reader());
+        return String.format("%d terms, %d norms and doc values", warmup.numTerms, warmup.numValues);
+    }
+
+    private void touch(LeafReader reader) throws IOException {
+        for(FieldInfo field: reader.getFieldInfos()) {
+            Terms terms = reader.terms(field.name);
+            if(terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                while(termsEnum.next() != null) {
+                    termsEnum.docFreq();  // Term stats are read lazily
+                    ++numTerms;
+                }
+            }
+            if(field.hasNorms())
+                touch(reader.getNormValues(field.name));
+            switch(field.getDocValuesType()) {
+                case NUMERIC:
+                    touch(reader.getNumericDocValues(field.name));
+                    break;
+                case BINARY:
+                    BinaryDocValues binaryValues = reader.getBinaryDocValues(field.name);
+                    while(binaryValues.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        binaryValues.binaryValue();
+                        ++numValues;
+                    }
+                    break;
+                case SORTED:
+                    SortedDocValues sortedValues = reader.getSortedDocValues(field.name);
+                    while(sortedValues.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        sortedValues.ordValue();
+                        ++numValues;
+                    }
+                    for(int ord = 0; ord < sortedValues.getValueCount(); ++ord)
+                        sortedValues.lookupOrd(ord);
+                    break;
+                case SORTED_NUMERIC:
+                    SortedNumericDocValues sortedNumericValues = reader.getSortedNumericDocValues(field.name);
+                    while(sortedNumericValues.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        for(int i = 0; i < sortedNumericValues.docValueCount(); ++i)
+                            sortedNumericValues.nextValue();
+                        ++numValues;
+                    }
+                    break;
+                case SORTED_SET:
+                    SortedSetDocValues sortedSetValues = reader.getSortedSetDocValues(field.name);
+                    while(sortedSetValues.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        while(sortedSetValues.nextOrd() != SortedSetDocValues.NO_MORE_ORDS)
+                            ++numValues;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void touch(NumericDocValues values) throws IOException {
+        while(values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            values.longValue();
+            ++numValues;
+        }
+    }
+}